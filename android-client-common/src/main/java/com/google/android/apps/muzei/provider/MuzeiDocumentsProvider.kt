@@ -21,16 +21,17 @@ import android.content.ContentUris
 import android.content.res.AssetFileDescriptor
 import android.database.Cursor
 import android.database.MatrixCursor
-import android.graphics.Bitmap
 import android.graphics.Point
 import android.net.Uri
 import android.os.Binder
 import android.os.CancellationSignal
 import android.os.ParcelFileDescriptor
+import android.provider.BaseColumns
 import android.provider.DocumentsContract
 import android.provider.DocumentsProvider
-import android.util.Log
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.api.internal.MappedCursor
+import com.google.android.apps.muzei.api.internal.ThumbnailCache
+import com.google.android.apps.muzei.render.RenditionStore
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import kotlinx.coroutines.runBlocking
@@ -38,8 +39,6 @@ import net.nurik.roman.muzei.androidclientcommon.BuildConfig
 import net.nurik.roman.muzei.androidclientcommon.R
 import java.io.File
 import java.io.FileNotFoundException
-import java.io.FileOutputStream
-import java.io.IOException
 
 /**
  * DocumentsProvider that allows users to view previous Muzei wallpapers
@@ -71,6 +70,12 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
                 DocumentsContract.Document.COLUMN_LAST_MODIFIED)
 
         private const val ROOT_DOCUMENT_ID = "root"
+        private const val MAX_THUMBNAIL_CACHE_BYTES = 16L * 1024 * 1024
+    }
+
+    private val thumbnailCache by lazy {
+        ThumbnailCache(File(requireNotNull(context).cacheDir, "artwork_thumbnails"),
+                MAX_THUMBNAIL_CACHE_BYTES)
     }
 
     @SuppressLint("InlinedApi")
@@ -94,15 +99,13 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
 
     @Throws(FileNotFoundException::class)
     override fun querySearchDocuments(rootId: String, query: String, projection: Array<String>?): Cursor {
-        val result = MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
-        val context = context ?: return result
+        val context = context ?: return MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
 
         val likeAnyPositionQuery = "%$query%"
-        runBlocking {
-            includeAllArtwork(result, MuzeiDatabase.getInstance(context).artworkDao()
-                    .searchArtwork(likeAnyPositionQuery))
+        return runBlocking {
+            getArtworkDocuments(projection, MuzeiDatabase.getInstance(context).artworkDao()
+                    .searchArtworkDocuments(likeAnyPositionQuery))
         }
-        return result
     }
 
     override fun isChildDocument(parentDocumentId: String, documentId: String): Boolean {
@@ -119,37 +122,48 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
 
     @Throws(FileNotFoundException::class)
     override fun queryChildDocuments(parentDocumentId: String, projection: Array<String>?, sortOrder: String?): Cursor {
-        val result = MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
-        val context = context ?: return result
-        if (ROOT_DOCUMENT_ID == parentDocumentId) {
-            runBlocking {
-                includeAllArtwork(result, MuzeiDatabase.getInstance(context).artworkDao()
-                        .getArtwork())
-            }
-            result.setNotificationUri(context.contentResolver,
-                    DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
-                            ROOT_DOCUMENT_ID))
+        val context = context ?: return MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
+        if (ROOT_DOCUMENT_ID != parentDocumentId) {
+            return MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
         }
+        val result = runBlocking {
+            getArtworkDocuments(projection, MuzeiDatabase.getInstance(context).artworkDao()
+                    .getArtworkDocuments())
+        }
+        result.setNotificationUri(context.contentResolver,
+                DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
+                        ROOT_DOCUMENT_ID))
         return result
     }
 
-    private suspend fun includeAllArtwork(result: MatrixCursor, artworkList: List<Artwork>) {
-        val context = context ?: return
-        val currentArtworkId = MuzeiDatabase.getInstance(context).artworkDao()
-                .getCurrentArtwork()?.id ?: -1
-        for (artwork in artworkList) {
-            result.newRow().apply {
-                add(DocumentsContract.Document.COLUMN_DOCUMENT_ID,
-                        artwork.id.toString())
-                add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, artwork.title)
-                add(DocumentsContract.Document.COLUMN_SUMMARY, artwork.byline)
-                add(DocumentsContract.Document.COLUMN_MIME_TYPE, "image/png")
+    /**
+     * Lazily map each row of the [artwork] cursor to a document row as it is read,
+     * rather than copying every row up front.
+     */
+    private suspend fun getArtworkDocuments(
+            projection: Array<String>?,
+            artwork: Cursor
+    ): MappedCursor {
+        val currentArtworkId = context?.let { context ->
+            MuzeiDatabase.getInstance(context).artworkDao().getCurrentArtwork()?.id
+        } ?: -1
+        return MappedCursor(artwork, projection ?: DEFAULT_DOCUMENT_PROJECTION) { columnName ->
+            val artworkId = getLong(getColumnIndexOrThrow(BaseColumns._ID))
+            when (columnName) {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID -> artworkId.toString()
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME ->
+                    getString(getColumnIndexOrThrow("title"))
+                DocumentsContract.Document.COLUMN_SUMMARY ->
+                    getString(getColumnIndexOrThrow("byline"))
+                DocumentsContract.Document.COLUMN_MIME_TYPE -> "image/png"
                 // Don't allow deleting the currently displayed artwork
-                add(DocumentsContract.Document.COLUMN_FLAGS, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL or
-                        (if (artwork.id != currentArtworkId)
-                            DocumentsContract.Document.FLAG_SUPPORTS_DELETE else 0))
-                add(DocumentsContract.Document.COLUMN_SIZE, null)
-                add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, artwork.dateAdded.time)
+                DocumentsContract.Document.COLUMN_FLAGS ->
+                    DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL or
+                            (if (artworkId != currentArtworkId)
+                                DocumentsContract.Document.FLAG_SUPPORTS_DELETE else 0)
+                DocumentsContract.Document.COLUMN_LAST_MODIFIED ->
+                    getLong(getColumnIndexOrThrow("date_added"))
+                else -> null
             }
         }
     }
@@ -173,19 +187,18 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
                 // so just return an empty result
                 return result
             }
-            runBlocking {
+            return runBlocking {
                 val token = Binder.clearCallingIdentity()
                 try {
-                    val artwork = MuzeiDatabase.getInstance(context).artworkDao()
-                            .getArtworkById(artworkId)
-                    if (artwork != null) {
-                        includeAllArtwork(result, listOf(artwork))
-                    } else {
+                    getArtworkDocuments(projection, MuzeiDatabase.getInstance(context)
+                            .artworkDao().getArtworkDocumentById(artworkId)).also { artwork ->
+                        if (artwork.count == 0) {
                             // The artwork isn't there anymore. Delete it to
                             // revoke any document permissions attached to it
                             DocumentsContract.deleteDocument(context.contentResolver,
                                     DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
                                             documentId))
+                        }
                     }
                 } finally {
                     Binder.restoreCallingIdentity(token)
@@ -235,18 +248,25 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
             artworkUri: Uri,
             sizeHint: Point
     ): AssetFileDescriptor? {
-        val contentResolver = context?.contentResolver ?: return null
+        val context = context ?: return null
+        val contentResolver = context.contentResolver
         val artworkId = ContentUris.parseId(artworkUri)
-        val tempFile = getCacheFileForArtworkUri(artworkId)
-        if (tempFile.exists() && tempFile.length() != 0L) {
-            // We already have a cached thumbnail
-            return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH)
+        val artwork = MuzeiDatabase.getInstance(context).artworkDao()
+                .getArtworkById(artworkId)
+        var artworkMissing = artwork == null
+        val thumbnailFile = artwork?.let {
+            thumbnailCache.get(artworkId.toString(), artwork.dateAdded.time,
+                    sizeHint) { targetWidth, targetHeight ->
+                runBlocking {
+                    RenditionStore.getInstance(context).decode(
+                            artworkId, targetWidth, targetHeight)
+                }.also { bitmap ->
+                    artworkMissing = bitmap == null
+                }
+            }
         }
-        val bitmap = ImageLoader.decode(
-                contentResolver, artworkUri,
-                sizeHint.x / 2, sizeHint.y / 2
-        ) ?: run {
+        if (artworkMissing) {
+            thumbnailCache.remove(artworkId.toString())
             // The artwork isn't there anymore. Delete it to
             // revoke any document permissions attached to it
             DocumentsContract.deleteDocument(contentResolver,
@@ -254,32 +274,10 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
                             artworkId.toString()))
             throw FileNotFoundException("Unable to open artwork for $artworkUri")
         }
-
-        // Write out the thumbnail to a temporary file
-        try {
-            FileOutputStream(tempFile).use { out ->
-                bitmap.compress(Bitmap.CompressFormat.PNG, 90, out)
-            }
-        } catch (e: IOException) {
-            Log.e(TAG, "Error writing thumbnail", e)
-            return null
-        }
-
-        return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
-                AssetFileDescriptor.UNKNOWN_LENGTH)
-    }
-
-    @Throws(FileNotFoundException::class)
-    private suspend fun getCacheFileForArtworkUri(artworkId: Long): File {
-        val context = context ?: throw FileNotFoundException("Unable to create cache directory")
-        val directory = File(context.cacheDir, "artwork_thumbnails")
-        if (!directory.exists() && !directory.mkdirs()) {
-            throw FileNotFoundException("Unable to create cache directory")
+        return thumbnailFile?.let {
+            AssetFileDescriptor(ParcelFileDescriptor.open(thumbnailFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH)
         }
-        val artwork = MuzeiDatabase.getInstance(context).artworkDao()
-                .getArtworkById(artworkId)
-                ?: throw FileNotFoundException("Unable to get artwork for id $artworkId")
-        return File(directory, artwork.id.toString())
     }
 
     @Throws(FileNotFoundException::class)
@@ -289,6 +287,7 @@ class MuzeiDocumentsProvider : DocumentsProvider() {
         ensureBackground {
             MuzeiDatabase.getInstance(context).artworkDao().deleteById(artworkId)
         }
+        thumbnailCache.remove(documentId)
         context.contentResolver.notifyChange(
                 DocumentsContract.buildDocumentUri(BuildConfig.DOCUMENTS_AUTHORITY,
                         ROOT_DOCUMENT_ID),
@@ -21,6 +21,7 @@ package com.google.android.apps.muzei.provider
 import android.content.ContentProvider
 import android.content.ContentUris
 import android.content.ContentValues
+import android.content.Context
 import android.content.UriMatcher
 import android.database.Cursor
 import android.database.DatabaseUtils
@@ -31,13 +32,21 @@ import android.os.ParcelFileDescriptor
 import android.provider.BaseColumns
 import android.util.Log
 import androidx.core.os.UserManagerCompat
+import androidx.room.InvalidationTracker
 import androidx.sqlite.db.SupportSQLiteQueryBuilder
 import com.google.android.apps.muzei.api.MuzeiContract
+import com.google.android.apps.muzei.render.RenditionStore
+import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.sync.ProviderManager
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.runBlocking
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+import java.io.File
 import java.io.FileNotFoundException
+import java.io.FileOutputStream
 
 /**
  * Provides access to a the most recent artwork
@@ -46,6 +55,7 @@ class MuzeiProvider : ContentProvider() {
 
     companion object {
         private const val TAG = "MuzeiProvider"
+        private const val CURRENT_ARTWORK_FILENAME = "current_artwork"
         /**
          * The incoming URI matches the ARTWORK URI pattern
          */
@@ -105,6 +115,48 @@ class MuzeiProvider : ContentProvider() {
             "commands" to "NULL AS commands"
     )
 
+    /**
+     * A local copy of the current artwork, letting repeated reads of the current
+     * artwork skip querying the database and opening the artwork from its provider
+     */
+    private class CurrentArtworkFile(val artworkId: Long, val file: File)
+
+    private val currentArtworkLock = Any()
+    @Volatile
+    private var currentArtworkFile: CurrentArtworkFile? = null
+    /**
+     * Incremented whenever the current artwork may have changed, invalidating
+     * any local copy made before the change
+     */
+    private var currentArtworkGeneration = 0
+    private var copyingArtworkGeneration = -1
+    /**
+     * The current artwork's id as of the last invalidation, -1 before the first one
+     */
+    private var observedArtworkId: Long? = -1L
+
+    private val currentArtworkObserver by lazy {
+        val context = context ?: throw IllegalStateException("MuzeiProvider not created")
+        object : InvalidationTracker.Observer("artwork", "provider") {
+            override fun onInvalidated(tables: Set<String>) {
+                // Invalidations are delivered on a background thread
+                val artworkId = MuzeiDatabase.getInstance(context).artworkDao()
+                        .currentArtworkBlocking?.id
+                synchronized(currentArtworkLock) {
+                    if (artworkId == observedArtworkId) {
+                        // Only other artwork changed, such as old history being trimmed
+                        return
+                    }
+                    observedArtworkId = artworkId
+                    currentArtworkGeneration++
+                    currentArtworkFile = null
+                }
+            }
+        }.also { observer ->
+            MuzeiDatabase.getInstance(context).invalidationTracker.addObserver(observer)
+        }
+    }
+
     override fun delete(uri: Uri, selection: String?, selectionArgs: Array<String>?): Int {
         throw UnsupportedOperationException("Deletes are not supported")
     }
@@ -207,8 +259,8 @@ class MuzeiProvider : ContentProvider() {
                 add(BaseColumns._ID, 0L)
                 add(MuzeiContract.Sources.COLUMN_NAME_AUTHORITY, provider.authority)
                 add("selected", true)
-                add(MuzeiContract.Sources.COLUMN_NAME_DESCRIPTION, runBlocking {
-                    ProviderManager.getDescription(context, provider.authority)
+                add(MuzeiContract.Sources.COLUMN_NAME_DESCRIPTION, ensureBackground {
+                    ProviderManager.getCachedDescription(context, provider.authority)
                 })
                 add("network", false)
                 add(MuzeiContract.Sources.COLUMN_NAME_SUPPORTS_NEXT_ARTWORK_COMMAND,
@@ -251,6 +303,34 @@ class MuzeiProvider : ContentProvider() {
                     ?: throw FileNotFoundException("No wallpaper was cached for Direct Boot")
             return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
         }
+        val readOnly = mode == "r"
+        if (readOnly) {
+            openRendition(context, uri)?.let { rendition ->
+                return rendition
+            }
+        }
+        val generation = if (readOnly) {
+            // Start listening for changes before reading the current artwork
+            currentArtworkObserver
+            currentArtworkFile?.takeIf { currentArtwork ->
+                when (uriMatcher.match(uri)) {
+                    ARTWORK -> true
+                    else -> ContentUris.parseId(uri) == currentArtwork.artworkId
+                }
+            }?.let { currentArtwork ->
+                try {
+                    return ParcelFileDescriptor.open(currentArtwork.file,
+                            ParcelFileDescriptor.MODE_READ_ONLY)
+                } catch (e: FileNotFoundException) {
+                    // The local copy was removed, so fall back to the artwork's provider
+                }
+            }
+            synchronized(currentArtworkLock) {
+                currentArtworkGeneration
+            }
+        } else {
+            -1
+        }
         val artworkDao = MuzeiDatabase.getInstance(context).artworkDao()
         val artwork = ensureBackground {
             when (uriMatcher.match(uri)) {
@@ -260,7 +340,11 @@ class MuzeiProvider : ContentProvider() {
         } ?: throw FileNotFoundException("Could not get artwork file for $uri")
         val token = Binder.clearCallingIdentity()
         try {
-            return context.contentResolver.openFileDescriptor(artwork.imageUri, mode)
+            return context.contentResolver.openFileDescriptor(artwork.imageUri, mode)?.also {
+                if (readOnly && uriMatcher.match(uri) == ARTWORK) {
+                    copyCurrentArtwork(context, artwork, generation)
+                }
+            }
         } catch (e: FileNotFoundException) {
             if (BuildConfig.DEBUG) {
                 Log.w(TAG, "Artwork ${artwork.imageUri} with id ${artwork.id} from request for $uri " +
@@ -275,6 +359,91 @@ class MuzeiProvider : ContentProvider() {
         }
     }
 
+    /**
+     * Open a scaled down rendition of the artwork if the [uri] requests one via the
+     * [MuzeiContract.Artwork.QUERY_PARAMETER_WIDTH] and
+     * [MuzeiContract.Artwork.QUERY_PARAMETER_HEIGHT] query parameters, returning null
+     * if no rendition was requested or if no rendition is large enough.
+     */
+    private fun openRendition(context: Context, uri: Uri): ParcelFileDescriptor? {
+        val width = uri.getQueryParameter(MuzeiContract.Artwork.QUERY_PARAMETER_WIDTH)
+                ?.toIntOrNull() ?: 0
+        val height = uri.getQueryParameter(MuzeiContract.Artwork.QUERY_PARAMETER_HEIGHT)
+                ?.toIntOrNull() ?: 0
+        if (width <= 0 || height <= 0) {
+            return null
+        }
+        val artworkId = when (uriMatcher.match(uri)) {
+            ARTWORK -> currentArtworkFile?.artworkId ?: ensureBackground {
+                MuzeiDatabase.getInstance(context).artworkDao()
+                        .currentArtworkBlocking?.id
+            }
+            else -> ContentUris.parseId(uri)
+        } ?: return null
+        // Renditions are generated by reading the artwork through this provider
+        val token = Binder.clearCallingIdentity()
+        val rendition = try {
+            runBlocking {
+                RenditionStore.getInstance(context).getRendition(artworkId, width, height)
+            }
+        } finally {
+            Binder.restoreCallingIdentity(token)
+        } ?: return null
+        return try {
+            ParcelFileDescriptor.open(rendition, ParcelFileDescriptor.MODE_READ_ONLY)
+        } catch (e: FileNotFoundException) {
+            // The rendition was removed before it could be opened
+            null
+        }
+    }
+
+    /**
+     * Copy the current [artwork] to local storage in the background so that later reads
+     * can be served from the local copy, as long as the current artwork hasn't changed
+     * since [generation].
+     */
+    private fun copyCurrentArtwork(context: Context, artwork: Artwork, generation: Int) {
+        synchronized(currentArtworkLock) {
+            if (generation != currentArtworkGeneration || generation == copyingArtworkGeneration) {
+                // Out of date or already being copied
+                return
+            }
+            copyingArtworkGeneration = generation
+        }
+        GlobalScope.launch(Dispatchers.IO) {
+            var partialFile: File? = null
+            try {
+                partialFile = File.createTempFile(CURRENT_ARTWORK_FILENAME, ".tmp",
+                        context.cacheDir)
+                val copied = context.contentResolver.openInputStream(artwork.imageUri)
+                        ?.use { input ->
+                            FileOutputStream(partialFile).use { out ->
+                                input.copyTo(out)
+                            }
+                            true
+                        } ?: false
+                synchronized(currentArtworkLock) {
+                    val file = File(context.cacheDir, CURRENT_ARTWORK_FILENAME)
+                    if (copied && generation == currentArtworkGeneration &&
+                            partialFile.renameTo(file)) {
+                        currentArtworkFile = CurrentArtworkFile(artwork.id, file)
+                    }
+                }
+            } catch (e: Exception) {
+                if (BuildConfig.DEBUG) {
+                    Log.w(TAG, "Unable to copy artwork ${artwork.imageUri}", e)
+                }
+            } finally {
+                partialFile?.delete()
+                synchronized(currentArtworkLock) {
+                    if (copyingArtworkGeneration == generation) {
+                        copyingArtworkGeneration = -1
+                    }
+                }
+            }
+        }
+    }
+
     override fun update(uri: Uri, values: ContentValues?, selection: String?, selectionArgs: Array<String>?): Int {
         throw UnsupportedOperationException("Updates are not supported")
     }
@@ -23,11 +23,15 @@ import android.graphics.BitmapFactory
 import android.graphics.Matrix
 import android.net.Uri
 import android.os.Build
+import android.os.ParcelFileDescriptor
 import android.util.Log
 import androidx.exifinterface.media.ExifInterface
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.withContext
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+import java.io.Closeable
+import java.io.File
+import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.io.InputStream
@@ -46,6 +50,15 @@ fun InputStream.isValidImage(): Boolean {
     }
 }
 
+private val ExifInterface.rotation
+    get() = when (getAttributeInt(ExifInterface.TAG_ORIENTATION,
+            ExifInterface.ORIENTATION_NORMAL)) {
+        ExifInterface.ORIENTATION_ROTATE_90 -> 90
+        ExifInterface.ORIENTATION_ROTATE_180 -> 180
+        ExifInterface.ORIENTATION_ROTATE_270 -> 270
+        else -> 0
+    }
+
 /**
  * Base class for loading images with the correct rotation
  */
@@ -65,88 +78,57 @@ sealed class ImageLoader {
         }
     }
 
-    fun getSize(): Pair<Int, Int> {
+    /**
+     * Open the underlying source, returning an [ImageDecodeSession] that can report the
+     * size and rotation of the image and decode it at any number of target sizes. When
+     * the source can be opened as a seekable file descriptor, it is opened exactly once
+     * and every decode reads directly from it. Returns null if the source could not be
+     * opened. The session must be closed when it is no longer needed.
+     */
+    fun openSession(): ImageDecodeSession? {
+        var fileDescriptor: ParcelFileDescriptor? = null
         return try {
-            val (originalWidth, originalHeight) = openInputStream()?.use { input ->
-                val options = BitmapFactory.Options().apply {
-                    inJustDecodeBounds = true
+            fileDescriptor = try {
+                openFileDescriptor()
+            } catch (e: FileNotFoundException) {
+                // Not every source can be opened as a whole file,
+                // so fall back to reading it as a stream
+                null
+            }?.let { descriptor ->
+                if (descriptor.statSize >= 0) {
+                    descriptor
+                } else {
+                    // Pipes and sockets can't be rewound between decodes
+                    descriptor.close()
+                    null
                 }
-                BitmapFactory.decodeStream(input, null, options)
-                options.outWidth to options.outHeight
-            } ?: return 0 to 0
-            val rotation = getRotation()
-            val width = if (rotation == 90 || rotation == 270) originalHeight else originalWidth
-            val height = if (rotation == 90 || rotation == 270) originalWidth else originalHeight
-            return width to height
+            }
+            ImageDecodeSession(fileDescriptor, this)
         } catch (e: Exception) {
             if (BuildConfig.DEBUG) {
-                Log.w(TAG, "Error decoding ${toString()}: ${e.message}")
+                Log.w(TAG, "Error opening ${toString()}: ${e.message}")
             }
-            0 to 0
+            fileDescriptor?.close()
+            null
         }
     }
 
+    fun getSize(): Pair<Int, Int> {
+        return openSession()?.use { session ->
+            session.width to session.height
+        } ?: 0 to 0
+    }
+
     fun decode(
             targetWidth: Int = 0,
             targetHeight: Int = targetWidth
-    ) : Bitmap? {
-        return try {
-            val (originalWidth, originalHeight) = openInputStream()?.use { input ->
-                val options = BitmapFactory.Options().apply {
-                    inJustDecodeBounds = true
-                }
-                BitmapFactory.decodeStream(input, null, options)
-                Pair(options.outWidth, options.outHeight)
-            } ?: return null
-            val rotation = getRotation()
-            val width = if (rotation == 90 || rotation == 270) originalHeight else originalWidth
-            val height = if (rotation == 90 || rotation == 270) originalWidth else originalHeight
-            openInputStream()?.use { input ->
-                BitmapFactory.decodeStream(input, null,
-                        BitmapFactory.Options().apply {
-                            inPreferredConfig = Bitmap.Config.ARGB_8888
-                            if (targetWidth != 0) {
-                                inSampleSize = max(
-                                        width.sampleSize(targetWidth),
-                                        height.sampleSize(targetHeight))
-                            }
-                        })
-            }?.run {
-                when (rotation) {
-                    0 -> this
-                    else -> {
-                        val rotateMatrix = Matrix().apply {
-                            postRotate(rotation.toFloat())
-                        }
-                        Bitmap.createBitmap(
-                                this, 0, 0,
-                                this.width, this.height,
-                                rotateMatrix, true).also { rotatedBitmap ->
-                            if (rotatedBitmap != this) {
-                                recycle()
-                            }
-                        }
-                    }
-                }
-            }
-        } catch (e: Exception) {
-            if (BuildConfig.DEBUG) {
-                Log.w(TAG, "Error decoding ${toString()}: ${e.message}")
-            }
-            null
-        }
+    ) : Bitmap? = openSession()?.use { session ->
+        session.decode(targetWidth, targetHeight)
     }
 
     fun getRotation(): Int = try {
         openInputStream()?.use { input ->
-            val exifInterface = ExifInterface(input)
-            when (exifInterface.getAttributeInt(ExifInterface.TAG_ORIENTATION,
-                    ExifInterface.ORIENTATION_NORMAL)) {
-                ExifInterface.ORIENTATION_ROTATE_90 -> 90
-                ExifInterface.ORIENTATION_ROTATE_180 -> 180
-                ExifInterface.ORIENTATION_ROTATE_270 -> 270
-                else -> 0
-            }
+            ExifInterface(input).rotation
         } ?: 0
     } catch (e: Exception) {
         if (BuildConfig.DEBUG) {
@@ -155,6 +137,12 @@ sealed class ImageLoader {
         0
     }
 
+    /**
+     * Open the image as a file descriptor, returning null if the image is only
+     * available through [openInputStream].
+     */
+    open fun openFileDescriptor(): ParcelFileDescriptor? = null
+
     abstract fun openInputStream() : InputStream?
 }
 
@@ -166,6 +154,10 @@ class ContentUriImageLoader constructor(
         private val uri: Uri
 ) : ImageLoader() {
 
+    @Throws(FileNotFoundException::class)
+    override fun openFileDescriptor(): ParcelFileDescriptor? =
+            contentResolver.openFileDescriptor(uri, "r")
+
     @Throws(FileNotFoundException::class)
     override fun openInputStream(): InputStream? =
             contentResolver.openInputStream(uri)
@@ -175,6 +167,26 @@ class ContentUriImageLoader constructor(
     }
 }
 
+/**
+ * An [ImageLoader] capable of loading images from a [File]
+ */
+class FileImageLoader constructor(
+        private val file: File
+) : ImageLoader() {
+
+    @Throws(FileNotFoundException::class)
+    override fun openFileDescriptor(): ParcelFileDescriptor? =
+            ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY)
+
+    @Throws(FileNotFoundException::class)
+    override fun openInputStream(): InputStream? =
+            FileInputStream(file)
+
+    override fun toString(): String {
+        return file.toString()
+    }
+}
+
 /**
  * An [ImageLoader] capable of loading images from [AssetManager]
  */
@@ -191,3 +203,134 @@ class AssetImageLoader constructor(
         return fileName
     }
 }
+
+/**
+ * A single open image retrieved from an [ImageLoader]. The bounds and EXIF rotation are
+ * parsed once when the session is opened, allowing [decode] to be called any number of
+ * times (i.e., at multiple target sizes) without reopening the source.
+ *
+ * When the [ImageLoader] provides a seekable [fileDescriptor], every read rewinds and
+ * decodes directly from it without any additional IPC or copying the encoded image into
+ * memory. Otherwise, each read falls back to a new buffered stream from the loader.
+ */
+class ImageDecodeSession internal constructor(
+        private val fileDescriptor: ParcelFileDescriptor?,
+        private val imageLoader: ImageLoader
+) : Closeable {
+
+    companion object {
+        private const val TAG = "ImageDecodeSession"
+    }
+
+    private val name = imageLoader.toString()
+
+    /**
+     * The EXIF rotation of the image, in degrees
+     */
+    val rotation: Int = try {
+        if (fileDescriptor != null) {
+            fileDescriptor.rewind()
+            ExifInterface(fileDescriptor.fileDescriptor).rotation
+        } else {
+            imageLoader.openInputStream()?.buffered()?.use { input ->
+                ExifInterface(input).rotation
+            } ?: 0
+        }
+    } catch (e: Exception) {
+        if (BuildConfig.DEBUG) {
+            Log.w(TAG, "Couldn't open EXIF interface for $name", e)
+        }
+        0
+    }
+
+    /**
+     * The width of the image, taking into account the [rotation]
+     */
+    val width: Int
+
+    /**
+     * The height of the image, taking into account the [rotation]
+     */
+    val height: Int
+
+    init {
+        val options = BitmapFactory.Options().apply {
+            inJustDecodeBounds = true
+        }
+        decodeBitmap(options)
+        val rotated = rotation == 90 || rotation == 270
+        width = if (rotated) options.outHeight else options.outWidth
+        height = if (rotated) options.outWidth else options.outHeight
+    }
+
+    fun decode(
+            targetWidth: Int = 0,
+            targetHeight: Int = targetWidth
+    ): Bitmap? {
+        if (width == 0 || height == 0) {
+            return null
+        }
+        return try {
+            decodeBitmap(BitmapFactory.Options().apply {
+                inPreferredConfig = Bitmap.Config.ARGB_8888
+                if (targetWidth != 0) {
+                    inSampleSize = max(
+                            width.sampleSize(targetWidth),
+                            height.sampleSize(targetHeight))
+                }
+            })?.run {
+                when (rotation) {
+                    0 -> this
+                    else -> {
+                        val rotateMatrix = Matrix().apply {
+                            postRotate(rotation.toFloat())
+                        }
+                        Bitmap.createBitmap(
+                                this, 0, 0,
+                                this.width, this.height,
+                                rotateMatrix, true).also { rotatedBitmap ->
+                            if (rotatedBitmap != this) {
+                                recycle()
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            if (BuildConfig.DEBUG) {
+                Log.w(TAG, "Error decoding $name: ${e.message}")
+            }
+            null
+        }
+    }
+
+    /**
+     * Decode the image from its start, either directly from the [fileDescriptor]
+     * or from a new buffered stream if there is no file descriptor.
+     */
+    private fun decodeBitmap(options: BitmapFactory.Options): Bitmap? =
+            if (fileDescriptor != null) {
+                fileDescriptor.rewind()
+                BitmapFactory.decodeFileDescriptor(fileDescriptor.fileDescriptor, null, options)
+            } else {
+                imageLoader.openInputStream()?.buffered()?.use { input ->
+                    BitmapFactory.decodeStream(input, null, options)
+                }
+            }
+
+    /**
+     * Seek back to the start of the image. The file offset is shared with every
+     * duplicate of the descriptor, so reading the EXIF data or decoding moves it.
+     */
+    private fun ParcelFileDescriptor.rewind() {
+        FileInputStream(fileDescriptor).channel.position(0)
+    }
+
+    override fun close() {
+        fileDescriptor?.close()
+    }
+
+    override fun toString(): String {
+        return name
+    }
+}
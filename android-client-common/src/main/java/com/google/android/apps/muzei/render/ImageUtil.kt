@@ -17,34 +17,85 @@
 package com.google.android.apps.muzei.render
 
 import android.graphics.Bitmap
-import android.graphics.Color
 
-fun Bitmap?.darkness(): Float {
+/**
+ * The luminance of each pixel of a [Bitmap], as computed by [luminance].
+ */
+class Luminance internal constructor(
+        /**
+         * The number of pixels at each of the 256 luminance levels
+         */
+        val histogram: IntArray,
+        /**
+         * The number of pixels analyzed
+         */
+        val pixelCount: Int,
+        private val sum: Long,
+        private val sumOfSquares: Long
+) {
+    /**
+     * The mean luminance, from 0 to 255
+     */
+    val mean: Float
+        get() = if (pixelCount == 0) 0f else sum.toFloat() / pixelCount
+
+    /**
+     * The variance of the luminance
+     */
+    val variance: Float
+        get() = if (pixelCount == 0) 0f else sumOfSquares.toFloat() / pixelCount - mean * mean
+
+    /**
+     * The mean luminance scaled to be between 0 and 1
+     */
+    val darkness: Float
+        get() = if (pixelCount == 0) 0f else (sum / pixelCount) / 256f
+}
+
+/**
+ * Analyze the luminance of every pixel of this [Bitmap] in a single pass, reading a
+ * row at a time into a reused buffer and using integer weights for each channel.
+ */
+fun Bitmap?.luminance(): Luminance {
     if (this == null || width == 0 || height == 0) {
-        return 0f
+        return Luminance(IntArray(256), 0, 0, 0)
     }
+    return luminance(width, height) { row, y ->
+        getPixels(row, 0, width, 0, y, width, 1)
+    }
+}
 
-    var totalLum = 0
-    var n = 0
-    var x: Int
-    var y = 0
-    var color: Int
-    while (y < height) {
-        x = 0
-        while (x < width) {
-            ++n
-            color = getPixel(x, y)
-            totalLum += (0.21f * Color.red(color)
-                    + 0.71f * Color.green(color)
-                    + 0.07f * Color.blue(color)).toInt()
-            x++
+/**
+ * Analyze the luminance of a [width] by [height] image whose rows of ARGB colors
+ * are copied into the given buffer by [readRow], allowing the analysis to run
+ * without an Android [Bitmap].
+ */
+internal inline fun luminance(
+        width: Int,
+        height: Int,
+        readRow: (row: IntArray, y: Int) -> Unit
+): Luminance {
+    val histogram = IntArray(256)
+    val row = IntArray(width)
+    var sum = 0L
+    var sumOfSquares = 0L
+    for (y in 0 until height) {
+        readRow(row, y)
+        for (color in row) {
+            // 0.21 red, 0.71 green, and 0.07 blue, as fractions of 256
+            val lum = (54 * (color shr 16 and 0xff) +
+                    182 * (color shr 8 and 0xff) +
+                    18 * (color and 0xff)) shr 8
+            histogram[lum]++
+            sum += lum
+            sumOfSquares += lum * lum
         }
-        y++
     }
-
-    return totalLum / n / 256f
+    return Luminance(histogram, width * height, sum, sumOfSquares)
 }
 
+fun Bitmap?.darkness(): Float = luminance().darkness
+
 fun Int.sampleSize(targetSize: Int): Int {
     var sampleSize = 1
     while (this / (sampleSize shl 1) > targetSize) {
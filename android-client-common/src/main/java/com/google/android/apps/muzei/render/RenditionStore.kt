@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.Bitmap
+import android.util.Log
+import com.google.android.apps.muzei.room.Artwork
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import kotlin.math.ceil
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+/**
+ * Stores a ladder of downsampled renditions of each artwork on disk so that every
+ * consumer of the artwork (wallpaper colors, widgets, notifications, Wear, thumbnails)
+ * can decode a small image close to the size they need rather than each decoding
+ * the full size original.
+ *
+ * The whole ladder is generated from a single pass over the original image the
+ * first time any rendition of that artwork is requested. The renditions of the least
+ * recently used artwork are removed once all of the renditions total more than
+ * [MAX_BYTES] or there are renditions for more than [MAX_ARTWORK] artwork.
+ */
+class RenditionStore private constructor(private val context: Context) {
+
+    companion object {
+        private const val TAG = "RenditionStore"
+        private const val DIRECTORY_NAME = "artwork_renditions"
+        /**
+         * The shortest side of each rendition, from largest to smallest
+         */
+        private val SIZE_LADDER = intArrayOf(1024, 512, 256, 128)
+        /**
+         * The maximum total size of all renditions, as a single very large original
+         * can result in a ladder of several megabytes
+         */
+        private const val MAX_BYTES = 10L * 1024 * 1024
+        /**
+         * The maximum number of artwork to keep renditions of, regardless of their size
+         */
+        private const val MAX_ARTWORK = 32
+        private const val QUALITY = 90
+        /**
+         * Written once every rendition of an artwork has been generated,
+         * containing the size of the original image
+         */
+        private const val ORIGINAL_SIZE_FILENAME = "original"
+
+        @SuppressLint("StaticFieldLeak")
+        @Volatile
+        private var instance: RenditionStore? = null
+
+        fun getInstance(context: Context): RenditionStore {
+            return instance ?: synchronized(this) {
+                instance ?: RenditionStore(context.applicationContext).also {
+                    instance = it
+                }
+            }
+        }
+    }
+
+    private val directory = File(context.cacheDir, DIRECTORY_NAME)
+    private val mutex = Mutex()
+
+    /**
+     * Decode the artwork with the given [artworkId] so that it is at least
+     * [targetWidth] x [targetHeight], using the smallest stored rendition that is
+     * large enough. Falls back to decoding the original image if no rendition is
+     * large enough or if the rendition was trimmed before it could be decoded.
+     */
+    suspend fun decode(
+            artworkId: Long,
+            targetWidth: Int = 0,
+            targetHeight: Int = targetWidth
+    ): Bitmap? = withContext(Dispatchers.Default) {
+        val rendition = if (targetWidth != 0) {
+            getRendition(artworkId, targetWidth, targetHeight)
+        } else {
+            null
+        }
+        rendition?.let {
+            FileImageLoader(rendition).decode(targetWidth, targetHeight)
+        } ?: ContentUriImageLoader(context.contentResolver, Artwork.getContentUri(artworkId))
+                .decode(targetWidth, targetHeight)
+    }
+
+    /**
+     * Get the smallest stored rendition of the artwork with the given [artworkId] that
+     * is at least [targetWidth] x [targetHeight], generating the renditions for that
+     * artwork if they don't already exist. Returns null if no rendition is large enough
+     * or if the artwork could not be loaded.
+     *
+     * Renditions are read outside of the lock used to generate them, so the returned
+     * file may have already been trimmed by the time it is opened.
+     */
+    suspend fun getRendition(
+            artworkId: Long,
+            targetWidth: Int,
+            targetHeight: Int = targetWidth
+    ): File? = withContext(Dispatchers.Default) {
+        val artworkDirectory = ensureRenditions(artworkId) ?: return@withContext null
+        val (originalWidth, originalHeight) = try {
+            File(artworkDirectory, ORIGINAL_SIZE_FILENAME).readText().parseSize()
+        } catch (e: IOException) {
+            // The renditions were trimmed after they were generated
+            null
+        } ?: return@withContext null
+        val renditions = artworkDirectory.listFiles()?.mapNotNull { file ->
+            file.name.parseSize()?.let { size -> file to size }
+        }?.sortedBy { (_, size) -> size.first } ?: return@withContext null
+        renditions.firstOrNull { (_, size) ->
+            size.first >= targetWidth && size.second >= targetHeight
+        }?.first ?: renditions.lastOrNull()?.takeIf { (_, size) ->
+            // When the largest rendition is the original size, nothing is larger
+            size.first == originalWidth && size.second == originalHeight
+        }?.first
+    }
+
+    private suspend fun ensureRenditions(artworkId: Long): File? = mutex.withLock {
+        val artworkDirectory = File(directory, artworkId.toString())
+        if (File(artworkDirectory, ORIGINAL_SIZE_FILENAME).exists()) {
+            artworkDirectory.setLastModified(System.currentTimeMillis())
+            return artworkDirectory
+        }
+        // Clear out any partially generated renditions
+        artworkDirectory.deleteRecursively()
+        if (!artworkDirectory.mkdirs()) {
+            Log.w(TAG, "Unable to create rendition directory for $artworkId")
+            return null
+        }
+        val session = ContentUriImageLoader(context.contentResolver,
+                Artwork.getContentUri(artworkId)).openSession() ?: return null
+        val originalWidth = session.width
+        val originalHeight = session.height
+        // Decode the original once at the size needed for the largest rendition,
+        // then scale that down for each successively smaller rendition. The target
+        // size keeps the original's aspect ratio so that the sample size is based on
+        // the shortest side rather than the longest side.
+        var bitmap = session.use {
+            if (originalWidth == 0 || originalHeight == 0) {
+                return null
+            }
+            val targetScale = SIZE_LADDER[0].toFloat() / min(originalWidth, originalHeight)
+            session.decode(
+                    ceil(originalWidth * targetScale).toInt(),
+                    ceil(originalHeight * targetScale).toInt())
+        } ?: return null
+        try {
+            for (shortestSide in SIZE_LADDER) {
+                val scale = shortestSide.toFloat() / min(bitmap.width, bitmap.height)
+                if (scale < 1f) {
+                    val scaledBitmap = Bitmap.createScaledBitmap(bitmap,
+                            (bitmap.width * scale).roundToInt(),
+                            (bitmap.height * scale).roundToInt(),
+                            true)
+                    if (scaledBitmap != bitmap) {
+                        bitmap.recycle()
+                        bitmap = scaledBitmap
+                    }
+                }
+                val renditionFile = File(artworkDirectory, "${bitmap.width}x${bitmap.height}")
+                if (!renditionFile.exists()) {
+                    FileOutputStream(renditionFile).use { out ->
+                        bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out)
+                    }
+                }
+            }
+            File(artworkDirectory, ORIGINAL_SIZE_FILENAME)
+                    .writeText("${originalWidth}x$originalHeight")
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Generated renditions for artwork $artworkId")
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Unable to write renditions for $artworkId", e)
+            artworkDirectory.deleteRecursively()
+            return null
+        } finally {
+            bitmap.recycle()
+        }
+        trimToSize(artworkDirectory)
+        artworkDirectory
+    }
+
+    /**
+     * Remove the renditions of the least recently used artwork until the remaining
+     * renditions fit within [MAX_BYTES] and [MAX_ARTWORK], always keeping the
+     * renditions in [keepDirectory].
+     */
+    private fun trimToSize(keepDirectory: File) {
+        val artworkDirectories = directory.listFiles()
+                ?.sortedByDescending { it.lastModified() } ?: return
+        var totalBytes = 0L
+        var artworkCount = 0
+        for (artworkDirectory in artworkDirectories) {
+            val bytes = artworkDirectory.walk().filter { it.isFile }.sumOf { it.length() }
+            if (artworkDirectory != keepDirectory &&
+                    (totalBytes + bytes > MAX_BYTES || artworkCount >= MAX_ARTWORK)) {
+                artworkDirectory.deleteRecursively()
+            } else {
+                totalBytes += bytes
+                artworkCount++
+            }
+        }
+    }
+
+    private fun String.parseSize(): Pair<Int, Int>? {
+        val dimensions = split('x')
+        if (dimensions.size != 2) {
+            return null
+        }
+        val width = dimensions[0].toIntOrNull() ?: return null
+        val height = dimensions[1].toIntOrNull() ?: return null
+        return width to height
+    }
+}
@@ -33,7 +33,7 @@ import java.util.Date
 /**
  * Artwork's representation in Room
  */
-@Entity(indices = [(Index(value = ["providerAuthority"]))])
+@Entity(indices = [(Index(value = ["providerAuthority", "date_added"]))])
 data class Artwork(
         @field:TypeConverters(UriTypeConverter::class)
         val imageUri: Uri
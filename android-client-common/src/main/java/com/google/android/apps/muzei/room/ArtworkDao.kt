@@ -16,10 +16,12 @@
 
 package com.google.android.apps.muzei.room
 
+import android.database.Cursor
 import androidx.lifecycle.LiveData
 import androidx.room.Dao
 import androidx.room.Insert
 import androidx.room.Query
+import androidx.room.Transaction
 import kotlinx.coroutines.flow.Flow
 
 /**
@@ -28,8 +30,10 @@ import kotlinx.coroutines.flow.Flow
 @Dao
 abstract class ArtworkDao {
 
-    @Query("SELECT * FROM artwork ORDER BY date_added DESC LIMIT 100")
-    abstract suspend fun getArtwork(): List<Artwork>
+    @Query("""
+        SELECT _id, title, byline, date_added FROM artwork
+        ORDER BY date_added DESC LIMIT 100""")
+    abstract fun getArtworkDocuments(): Cursor
 
     @get:Query("""
         SELECT artwork.* FROM artwork 
@@ -76,11 +80,34 @@ abstract class ArtworkDao {
     @Query("SELECT * FROM artwork WHERE _id=:id")
     abstract suspend fun getArtworkById(id: Long): Artwork?
 
+    @Query("SELECT _id, title, byline, date_added FROM artwork WHERE _id=:id")
+    abstract fun getArtworkDocumentById(id: Long): Cursor
+
     @Query("""
-        SELECT * FROM artwork
+        SELECT _id, title, byline, date_added FROM artwork
         WHERE title LIKE :query OR byline LIKE :query OR attribution LIKE :query""")
-    abstract suspend fun searchArtwork(query: String): List<Artwork>
+    abstract fun searchArtworkDocuments(query: String): Cursor
 
     @Query("DELETE FROM artwork WHERE _id=:id")
     abstract fun deleteById(id: Long)
+
+    @Query("SELECT DISTINCT providerAuthority FROM artwork")
+    internal abstract suspend fun getProviderAuthorities(): List<String>
+
+    @Query("""
+        DELETE FROM artwork
+        WHERE providerAuthority = :providerAuthority AND _id NOT IN
+        (SELECT _id FROM artwork WHERE providerAuthority = :providerAuthority
+        ORDER BY date_added DESC LIMIT :keepCount)""")
+    internal abstract suspend fun deleteOldArtwork(providerAuthority: String, keepCount: Int): Int
+
+    /**
+     * Delete all but the [keepCount] most recent artwork of each provider, returning
+     * the number of artwork deleted.
+     */
+    @Transaction
+    open suspend fun trimHistory(keepCount: Int): Int =
+            getProviderAuthorities().sumBy { providerAuthority ->
+                deleteOldArtwork(providerAuthority, keepCount)
+            }
 }
@@ -54,8 +54,11 @@ suspend fun Artwork.openArtworkInfo(context: Context) {
     val success = ContentProviderClientCompat.getClient(
             context, imageUri)?.use { client ->
         try {
-            val versionResult = client.call(METHOD_GET_VERSION)
-            val version = versionResult?.getInt(KEY_VERSION) ?: DEFAULT_VERSION
+            val version = ProviderCommandsCache.getInstance(context)
+                    .getVersion(providerAuthority) {
+                        val versionResult = client.call(METHOD_GET_VERSION)
+                        versionResult?.getInt(KEY_VERSION) ?: DEFAULT_VERSION
+                    }
             if (version >= GET_ARTWORK_INFO_MIN_VERSION) {
                 val result = client.call(METHOD_GET_ARTWORK_INFO, imageUri.toString())
                 val artworkInfo = result?.getParcelable<PendingIntent>(KEY_GET_ARTWORK_INFO)
@@ -86,7 +89,16 @@ suspend fun Artwork.openArtworkInfo(context: Context) {
     }
 }
 
-suspend fun Artwork.getCommands(context: Context) : List<RemoteActionCompat> {
+suspend fun Artwork.getCommands(context: Context) : List<RemoteActionCompat> =
+        ProviderCommandsCache.getInstance(context).getCommands(this) {
+            loadCommands(context)
+        }
+
+/**
+ * Load the commands for this artwork from its provider, returning null if the
+ * commands could not be retrieved.
+ */
+private suspend fun Artwork.loadCommands(context: Context) : List<RemoteActionCompat>? {
     return ContentProviderClientCompat.getClient(context, imageUri)?.use { client ->
         return try {
             val result = client.call(METHOD_GET_COMMANDS, imageUri.toString(),
@@ -126,9 +138,10 @@ suspend fun Artwork.getCommands(context: Context) : List<RemoteActionCompat> {
             }
         } catch (e: RemoteException) {
             Log.i(TAG, "Provider for $imageUri crashed while retrieving commands", e)
-            ArrayList()
+            null
         }
-    } ?: ArrayList<RemoteActionCompat>().also {
+    } ?: run {
         Log.i(TAG, "Could not connect to provider for $imageUri while retrieving commands")
+        null
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room
+
+import android.content.Context
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.distinctUntilChangedBy
+import kotlinx.coroutines.flow.shareIn
+
+/**
+ * Process wide source of the current artwork, letting every component observing the
+ * current artwork share a single database query rather than each re-running the
+ * query whenever the artwork table changes.
+ */
+class CurrentArtworkRepository private constructor(context: Context) {
+
+    companion object {
+        @Volatile
+        private var instance: CurrentArtworkRepository? = null
+
+        fun getInstance(context: Context): CurrentArtworkRepository =
+                instance ?: synchronized(this) {
+                    instance ?: CurrentArtworkRepository(context.applicationContext).also {
+                        instance = it
+                    }
+                }
+    }
+
+    /**
+     * The current artwork, only emitting when the current artwork actually changes.
+     *
+     * The underlying query only runs while there are collectors (and for a short
+     * time afterwards, avoiding re-running the query when switching between
+     * collectors). Nothing is replayed once the query has stopped so that new
+     * collectors never receive an outdated artwork.
+     */
+    val currentArtwork: SharedFlow<Artwork?> = MuzeiDatabase.getInstance(context)
+            .artworkDao().currentArtwork
+            .distinctUntilChangedBy { artwork -> artwork?.id }
+            .shareIn(GlobalScope,
+                    SharingStarted.WhileSubscribed(5000L, replayExpirationMillis = 0L),
+                    1)
+}
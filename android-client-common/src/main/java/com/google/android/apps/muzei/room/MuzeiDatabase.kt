@@ -34,11 +34,14 @@ import java.io.File
 /**
  * Room Database for Muzei
  */
-@Database(entities = [(Artwork::class), (Provider::class)], version = 9)
+@Database(entities = [(Artwork::class), (Provider::class), (ProviderDescription::class)],
+        version = 11)
 abstract class MuzeiDatabase : RoomDatabase() {
 
     abstract fun providerDao(): ProviderDao
 
+    abstract fun providerDescriptionDao(): ProviderDescriptionDao
+
     abstract fun artworkDao(): ArtworkDao
 
     companion object {
@@ -58,12 +61,25 @@ abstract class MuzeiDatabase : RoomDatabase() {
                                 MIGRATION_5_6,
                                 Migration6to8(applicationContext),
                                 Migration7to8(applicationContext),
-                                MIGRATION_8_9)
+                                MIGRATION_8_9,
+                                MIGRATION_9_10,
+                                MIGRATION_10_11)
                         .build().also { database ->
                             database.invalidationTracker.addObserver(
                                     object : InvalidationTracker.Observer("artwork") {
+                                        // No artwork has an id of -1, so the first change is sent
+                                        private var currentArtworkId: Long? = -1L
+
                                         @Suppress("DEPRECATION")
                                         override fun onInvalidated(tables: Set<String>) {
+                                            // Trimming old history or adding artwork for other
+                                            // providers leaves the current artwork as it was
+                                            val artworkId = database.artworkDao()
+                                                    .currentArtworkBlocking?.id
+                                            if (artworkId == currentArtworkId) {
+                                                return
+                                            }
+                                            currentArtworkId = artworkId
                                             DirectBootCache.onArtworkChanged(applicationContext)
                                             applicationContext.contentResolver
                                                     .notifyChange(MuzeiContract.Artwork.CONTENT_URI, null)
@@ -91,6 +107,15 @@ abstract class MuzeiDatabase : RoomDatabase() {
                                         }
                                     }
                             )
+                            database.invalidationTracker.addObserver(
+                                    object : InvalidationTracker.Observer("provider_descriptions") {
+                                        @Suppress("DEPRECATION")
+                                        override fun onInvalidated(tables: Set<String>) {
+                                            applicationContext.contentResolver
+                                                    .notifyChange(MuzeiContract.Sources.CONTENT_URI, null)
+                                        }
+                                    }
+                            )
                             instance = database
                         }
             }
@@ -369,5 +394,26 @@ abstract class MuzeiDatabase : RoomDatabase() {
                 database.execSQL("DROP TABLE sources")
             }
         }
+
+        private val MIGRATION_9_10 = object : Migration(9, 10) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                // Add the provider description cache
+                database.execSQL("CREATE TABLE provider_descriptions ("
+                        + "authority TEXT PRIMARY KEY NOT NULL,"
+                        + "description TEXT NOT NULL,"
+                        + "packageVersion INTEGER NOT NULL,"
+                        + "locale TEXT NOT NULL)")
+            }
+        }
+
+        private val MIGRATION_10_11 = object : Migration(10, 11) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                // Replace the providerAuthority index with one that also covers
+                // the date_added ordering used to find the current artwork
+                database.execSQL("DROP INDEX IF EXISTS index_Artwork_providerAuthority")
+                database.execSQL("CREATE INDEX index_Artwork_providerAuthority_date_added "
+                        + "ON artwork (providerAuthority, date_added)")
+            }
+        }
     }
 }
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room
+
+import android.content.BroadcastReceiver
+import android.content.Context
+import android.content.Intent
+import android.content.IntentFilter
+import android.content.pm.PackageManager
+import android.database.ContentObserver
+import android.net.Uri
+import android.util.Log
+import android.util.LruCache
+import androidx.core.app.RemoteActionCompat
+import androidx.core.content.pm.PackageInfoCompat
+import androidx.lifecycle.DefaultLifecycleObserver
+import androidx.lifecycle.LifecycleOwner
+import com.google.android.apps.muzei.api.provider.ProviderContract
+import com.google.android.apps.muzei.util.launchWhenStartedIn
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.flow.filterNotNull
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.withContext
+import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+
+/**
+ * An in-process cache of the commands of each artwork and the API version of each
+ * provider, avoiding an IPC to the provider every time they are needed.
+ *
+ * Cached commands are keyed by the artwork's URI (which encodes both the provider's
+ * authority and the artwork's id) and are cleared whenever the provider notifies a
+ * change to its artwork. Both commands and versions are only reused while the provider's
+ * package version stays the same.
+ *
+ * The package version of each provider is itself cached until its package is changed,
+ * replaced, or removed, at which point everything cached for that provider is dropped
+ * and changes to its artwork are no longer observed until it is next used.
+ */
+class ProviderCommandsCache private constructor(private val context: Context) {
+
+    companion object {
+        private const val TAG = "ProviderCommandsCache"
+        private const val MAX_CACHED_COMMANDS = 32
+
+        @Volatile
+        private var instance: ProviderCommandsCache? = null
+
+        fun getInstance(context: Context): ProviderCommandsCache =
+                instance ?: synchronized(this) {
+                    instance ?: ProviderCommandsCache(context.applicationContext).also {
+                        instance = it
+                    }
+                }
+
+        /**
+         * Create a LifecycleObserver which loads the commands of the current artwork
+         * whenever it changes so that they are already cached when they are needed.
+         */
+        fun prefetchObserver(context: Context) = object : DefaultLifecycleObserver {
+            override fun onCreate(owner: LifecycleOwner) {
+                val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+                currentArtworkRepository.currentArtwork.filterNotNull().onEach { artwork ->
+                    artwork.getCommands(context)
+                }.launchWhenStartedIn(owner)
+            }
+        }
+    }
+
+    private class CachedCommands(
+            val packageVersion: Long,
+            val commands: List<RemoteActionCompat>
+    )
+
+    private class CachedVersion(
+            val packageVersion: Long,
+            val version: Int
+    )
+
+    private class CachedPackage(
+            val packageName: String,
+            val packageVersion: Long
+    )
+
+    private val commands = LruCache<Uri, CachedCommands>(MAX_CACHED_COMMANDS)
+    private val versions = HashMap<String, CachedVersion>()
+    private val observers = HashMap<String, ContentObserver>()
+    /**
+     * The number of times each provider has notified a change, used to avoid caching
+     * commands loaded before the latest change
+     */
+    private val generations = HashMap<String, Int>()
+    private val packages = HashMap<String, CachedPackage>()
+    /**
+     * The number of package changes received, used to avoid caching a package
+     * version loaded before the latest change
+     */
+    private var packageChanges = 0
+
+    init {
+        context.registerReceiver(object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                val packageName = intent.data?.schemeSpecificPart ?: return
+                onPackageChanged(packageName)
+            }
+        }, IntentFilter().apply {
+            addDataScheme("package")
+            addAction(Intent.ACTION_PACKAGE_ADDED)
+            addAction(Intent.ACTION_PACKAGE_CHANGED)
+            addAction(Intent.ACTION_PACKAGE_REPLACED)
+            addAction(Intent.ACTION_PACKAGE_REMOVED)
+        })
+    }
+
+    private fun onPackageChanged(packageName: String) = synchronized(this) {
+        packageChanges++
+        packages.filterValues { cachedPackage ->
+            cachedPackage.packageName == packageName
+        }.keys.forEach { authority ->
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Package $packageName changed, clearing $authority")
+            }
+            packages.remove(authority)
+            versions.remove(authority)
+            observers.remove(authority)?.let { contentObserver ->
+                context.contentResolver.unregisterContentObserver(contentObserver)
+            }
+            invalidate(authority)
+        }
+    }
+
+    private suspend fun getPackageVersion(authority: String): Long? {
+        val changes = synchronized(this) {
+            packages[authority]?.let { cachedPackage ->
+                return cachedPackage.packageVersion
+            }
+            packageChanges
+        }
+        return withContext(Dispatchers.Default) {
+            val packageManager = context.packageManager
+            val packageName = packageManager.resolveContentProvider(authority, 0)?.packageName
+                    ?: return@withContext null
+            val packageVersion = try {
+                PackageInfoCompat.getLongVersionCode(
+                        packageManager.getPackageInfo(packageName, 0))
+            } catch (e: PackageManager.NameNotFoundException) {
+                return@withContext null
+            }
+            synchronized(this@ProviderCommandsCache) {
+                // Don't cache the version if the package changed while loading it
+                if (packageChanges == changes) {
+                    packages[authority] = CachedPackage(packageName, packageVersion)
+                }
+            }
+            packageVersion
+        }
+    }
+
+    /**
+     * Start listening for changes to the provider's artwork, if not already listening.
+     * Must be called while holding the lock on this cache.
+     *
+     * @return Whether changes to the provider's artwork are being observed
+     */
+    private fun observe(authority: String): Boolean {
+        if (authority in observers) {
+            return true
+        }
+        val contentObserver = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean, uri: Uri?) {
+                invalidate(authority)
+            }
+        }
+        return try {
+            context.contentResolver.registerContentObserver(
+                    ProviderContract.getContentUri(authority),
+                    true,
+                    contentObserver)
+            observers[authority] = contentObserver
+            true
+        } catch (e: SecurityException) {
+            Log.w(TAG, "Unable to observe changes to $authority", e)
+            false
+        }
+    }
+
+    private fun invalidate(authority: String) = synchronized(this) {
+        generations[authority] = (generations[authority] ?: 0) + 1
+        commands.snapshot().keys.filter { imageUri ->
+            imageUri.authority == authority
+        }.forEach { imageUri ->
+            commands.remove(imageUri)
+        }
+    }
+
+    /**
+     * Get the commands for the given [artwork], using [loadCommands] to load them from
+     * the provider if they are not already cached. Commands that could not be loaded
+     * (indicated by [loadCommands] returning null) are not cached.
+     */
+    suspend fun getCommands(
+            artwork: Artwork,
+            loadCommands: suspend () -> List<RemoteActionCompat>?
+    ): List<RemoteActionCompat> {
+        val authority = artwork.providerAuthority
+        val packageVersion = getPackageVersion(authority)
+                ?: return loadCommands() ?: emptyList()
+        val generation = synchronized(this) {
+            commands[artwork.imageUri]?.takeIf { cached ->
+                cached.packageVersion == packageVersion
+            }?.let { cached ->
+                return cached.commands
+            }
+            if (!observe(authority)) {
+                null
+            } else {
+                generations[authority] ?: 0
+            }
+        }
+        val loadedCommands = loadCommands() ?: return emptyList()
+        if (generation != null) {
+            synchronized(this) {
+                // Don't cache commands if the artwork changed while loading them
+                if ((generations[authority] ?: 0) == generation) {
+                    commands.put(artwork.imageUri,
+                            CachedCommands(packageVersion, loadedCommands))
+                }
+            }
+        }
+        return loadedCommands
+    }
+
+    /**
+     * Get the API version of the provider with the given [authority], using [loadVersion]
+     * to retrieve it from the provider if it isn't cached for the provider's current
+     * package version.
+     */
+    suspend fun getVersion(
+            authority: String,
+            loadVersion: suspend () -> Int
+    ): Int {
+        val packageVersion = getPackageVersion(authority) ?: return loadVersion()
+        synchronized(this) {
+            versions[authority]?.takeIf { cached ->
+                cached.packageVersion == packageVersion
+            }?.let { cached ->
+                return cached.version
+            }
+        }
+        val version = loadVersion()
+        synchronized(this) {
+            versions[authority] = CachedVersion(packageVersion, version)
+        }
+        return version
+    }
+}
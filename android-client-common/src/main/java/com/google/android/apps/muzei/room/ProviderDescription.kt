@@ -0,0 +1,32 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * A provider's cached description, along with the package version and locale
+ * it was retrieved for
+ */
+@Entity(tableName = "provider_descriptions")
+data class ProviderDescription(
+        @field:PrimaryKey
+        val authority: String,
+        val description: String,
+        val packageVersion: Long,
+        val locale: String)
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.room
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import kotlinx.coroutines.flow.Flow
+
+/**
+ * Dao for cached Provider descriptions
+ */
+@Dao
+abstract class ProviderDescriptionDao {
+    @get:Query("SELECT * FROM provider_descriptions")
+    abstract val descriptions: Flow<List<ProviderDescription>>
+
+    @Query("SELECT * FROM provider_descriptions WHERE authority = :authority")
+    internal abstract fun getDescriptionBlocking(authority: String): ProviderDescription?
+
+    @Query("SELECT * FROM provider_descriptions WHERE authority = :authority")
+    internal abstract suspend fun getDescription(authority: String): ProviderDescription?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    internal abstract suspend fun insert(description: ProviderDescription)
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.sync
+
+import android.content.Context
+import android.util.Log
+import androidx.work.Constraints
+import androidx.work.CoroutineWorker
+import androidx.work.ExistingPeriodicWorkPolicy
+import androidx.work.PeriodicWorkRequestBuilder
+import androidx.work.WorkManager
+import androidx.work.WorkerParameters
+import com.google.android.apps.muzei.room.MuzeiDatabase
+import kotlinx.coroutines.withContext
+import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+import java.util.concurrent.TimeUnit
+
+/**
+ * Worker responsible for periodically removing old artwork from the [MuzeiDatabase],
+ * keeping only the [ProviderManager.artworkHistorySize] most recent artwork of each
+ * provider so that the artwork table doesn't grow without bound.
+ */
+class ArtworkHistoryWorker(
+        context: Context,
+        workerParams: WorkerParameters
+) : CoroutineWorker(context, workerParams) {
+
+    companion object {
+        private const val TAG = "ArtworkHistory"
+
+        internal fun enqueuePeriodic(context: Context) {
+            val workManager = WorkManager.getInstance(context)
+            workManager.enqueueUniquePeriodicWork(TAG, ExistingPeriodicWorkPolicy.KEEP,
+                    PeriodicWorkRequestBuilder<ArtworkHistoryWorker>(1, TimeUnit.DAYS)
+                            .setConstraints(Constraints.Builder()
+                                    .setRequiresBatteryNotLow(true)
+                                    .build())
+                            .build())
+        }
+    }
+
+    override suspend fun doWork() = withContext(syncSingleThreadContext) {
+        // Always keep at least the current artwork of each provider
+        val keepCount = ProviderManager.getInstance(applicationContext)
+                .artworkHistorySize.coerceAtLeast(1)
+        val deleted = MuzeiDatabase.getInstance(applicationContext).artworkDao()
+                .trimHistory(keepCount)
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Removed $deleted artwork, keeping $keepCount per provider")
+        }
+        Result.success()
+    }
+}
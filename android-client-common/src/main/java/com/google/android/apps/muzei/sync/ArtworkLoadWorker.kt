@@ -22,6 +22,8 @@ import android.database.Cursor
 import android.net.Uri
 import android.provider.BaseColumns
 import android.util.Log
+import androidx.core.content.edit
+import androidx.core.os.bundleOf
 import androidx.work.Constraints
 import androidx.work.CoroutineWorker
 import androidx.work.ExistingPeriodicWorkPolicy
@@ -31,13 +33,22 @@ import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.PeriodicWorkRequestBuilder
 import androidx.work.WorkManager
 import androidx.work.WorkerParameters
+import androidx.work.workDataOf
 import com.google.android.apps.muzei.api.internal.ProtocolConstants
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_ARTWORK_COUNT
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_EXCLUDED_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_LOADED_ARTWORK_ID
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_PINNED_ARTWORK_IDS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RANDOM_ARTWORK_IDS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RANDOM_ARTWORK_LIMIT
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RECENT_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_LOAD_INFO
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_RANDOM_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_MARK_ARTWORK_LOADED
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_REQUEST_LOAD
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_SET_PINNED_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.getRecentIds
+import com.google.android.apps.muzei.api.internal.shuffledIndices
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.render.isValidImage
@@ -47,9 +58,12 @@ import com.google.android.apps.muzei.util.ContentProviderClientCompat
 import com.google.android.apps.muzei.util.getLong
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.delay
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import kotlinx.coroutines.withContext
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig
 import java.io.IOException
+import java.util.ArrayDeque
 import java.util.Random
 import java.util.concurrent.TimeUnit
 
@@ -65,7 +79,23 @@ class ArtworkLoadWorker(
     companion object {
         private const val TAG = "ArtworkLoad"
         private const val PERIODIC_TAG = "ArtworkLoadPeriodic"
+        private const val PREFETCH_TAG = "ArtworkPrefetch"
         private const val ARTWORK_LOAD_THROTTLE = 250L // quarter second
+        private const val RANDOM_ARTWORK_LIMIT = 5
+        private const val KEY_PREFETCH = "prefetch"
+        private const val PREFETCH_PREFERENCES = "artwork_prefetch"
+
+        /**
+         * Ensures that loads and prefetches don't interleave at their suspension points,
+         * i.e., prefetching the same artwork that a load is just making current
+         */
+        private val loadMutex = Mutex()
+
+        /**
+         * Incremented whenever the prefetch queue is cleared so that a prefetch
+         * already in progress doesn't add artwork found before it was cleared
+         */
+        private var prefetchGeneration = 0
 
         internal fun enqueueNext(context: Context) {
             val workManager = WorkManager.getInstance(context)
@@ -73,6 +103,40 @@ class ArtworkLoadWorker(
                     OneTimeWorkRequestBuilder<ArtworkLoadWorker>().build())
         }
 
+        /**
+         * Fill the queue of prefetched artwork up to [ProviderManager.prefetchDepth],
+         * downloading and validating each artwork while on an unmetered network so that
+         * the next artwork load can use it immediately.
+         */
+        internal fun enqueuePrefetch(context: Context) {
+            val workManager = WorkManager.getInstance(context)
+            if (ProviderManager.getInstance(context).prefetchDepth <= 0) {
+                workManager.cancelUniqueWork(PREFETCH_TAG)
+                clearPrefetched(context)
+                return
+            }
+            workManager.enqueueUniqueWork(PREFETCH_TAG, ExistingWorkPolicy.REPLACE,
+                    OneTimeWorkRequestBuilder<ArtworkLoadWorker>()
+                            .setInputData(workDataOf(KEY_PREFETCH to true))
+                            .setConstraints(Constraints.Builder()
+                                    .setRequiredNetworkType(NetworkType.UNMETERED)
+                                    .setRequiresBatteryNotLow(true)
+                                    .build())
+                            .build())
+        }
+
+        /**
+         * Clear the queue of prefetched artwork, i.e., when the provider's artwork has
+         * changed and the prefetched artwork may no longer be what should be loaded next.
+         * This must be called on the [syncSingleThreadContext].
+         */
+        internal fun clearPrefetched(context: Context) {
+            prefetchGeneration++
+            context.getSharedPreferences(PREFETCH_PREFERENCES, Context.MODE_PRIVATE).edit {
+                clear()
+            }
+        }
+
         internal fun enqueuePeriodic(
                 context: Context,
                 loadFrequencySeconds: Long,
@@ -99,113 +163,99 @@ class ArtworkLoadWorker(
         }
     }
 
+    /**
+     * The ids of the provider's artwork that have already been downloaded and validated,
+     * in the order they should be shown. Only the current provider's queue is retained.
+     *
+     * Each operation reads and writes the stored queue without suspending, ensuring that
+     * the operations remain atomic on the [syncSingleThreadContext].
+     */
+    private class PrefetchQueue(context: Context, private val authority: String) {
+        private val preferences = context.getSharedPreferences(
+                PREFETCH_PREFERENCES, Context.MODE_PRIVATE)
+
+        val ids: List<Long>
+            get() = preferences.getString(authority, null)
+                    ?.split(',')
+                    ?.mapNotNull { it.toLongOrNull() }
+                    ?: emptyList()
+
+        private fun save(ids: List<Long>) {
+            preferences.edit {
+                clear()
+                if (ids.isNotEmpty()) {
+                    putString(authority, ids.joinToString(","))
+                }
+            }
+        }
+
+        fun add(id: Long) = save(ids + id)
+
+        fun removeFirst(): Long? = ids.firstOrNull()?.also { id ->
+            save(ids.drop(1))
+        }
+    }
+
+    /**
+     * The outcome of looking for the next artwork to load
+     */
+    private sealed class NextArtwork {
+        class Found(val artwork: Artwork) : NextArtwork()
+        /**
+         * No valid artwork was found, but there may be some later
+         */
+        object NotFound : NextArtwork()
+        /**
+         * The provider does not have any other artwork to load
+         */
+        object Unavailable : NextArtwork()
+    }
+
     override suspend fun doWork() = withContext(syncSingleThreadContext) {
-        // Throttle artwork loads
-        delay(ARTWORK_LOAD_THROTTLE)
+        val prefetch = inputData.getBoolean(KEY_PREFETCH, false)
+        if (!prefetch) {
+            // Throttle artwork loads
+            delay(ARTWORK_LOAD_THROTTLE)
+        }
         // Now actually load the artwork
         val database = MuzeiDatabase.getInstance(applicationContext)
         val (authority) = database.providerDao()
                 .getCurrentProvider() ?: return@withContext Result.failure()
         if (BuildConfig.DEBUG) {
-            Log.d(TAG, "Artwork Load for $authority")
+            Log.d(TAG, "Artwork ${if (prefetch) "Prefetch" else "Load"} for $authority")
         }
         val contentUri = ProviderContract.getContentUri(authority)
+        val prefetchQueue = PrefetchQueue(applicationContext, authority)
         try {
-            ContentProviderClientCompat.getClient(applicationContext, contentUri)?.use { client ->
-                val result = client.call(METHOD_GET_LOAD_INFO)
-                        ?: return@withContext Result.failure()
-                val maxLoadedArtworkId = result.getLong(KEY_MAX_LOADED_ARTWORK_ID, 0L)
-                val recentArtworkIds = result.getRecentIds(KEY_RECENT_ARTWORK_IDS)
-                client.query(
-                        contentUri,
-                        selection = "_id > ?",
-                        selectionArgs = arrayOf(maxLoadedArtworkId.toString()),
-                        sortOrder = ProviderContract.Artwork._ID
-                )?.use { newArtwork ->
-                    client.query(contentUri)?.use { allArtwork ->
-                        // First prioritize new artwork
-                        while (newArtwork.moveToNext()) {
-                            val validArtwork = checkForValidArtwork(client, contentUri, newArtwork)
-                            if (validArtwork != null) {
-                                validArtwork.providerAuthority = authority
-                                val artworkId = database.artworkDao().insert(validArtwork)
-                                if (BuildConfig.DEBUG) {
-                                    Log.d(TAG, "Loaded ${validArtwork.imageUri} into id $artworkId")
-                                }
-                                client.call(METHOD_MARK_ARTWORK_LOADED, validArtwork.imageUri.toString())
-                                // If we just loaded the last new artwork, we should request that they load another
-                                // in preparation for the next load
-                                if (!newArtwork.moveToNext()) {
-                                    if (BuildConfig.DEBUG) {
-                                        Log.d(TAG, "Out of new artwork, requesting load from $authority")
-                                    }
-                                    client.call(METHOD_REQUEST_LOAD)
-                                }
-                                return@withContext Result.success()
-                            }
-                        }
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Could not find any new artwork, requesting load from $authority")
-                        }
-                        // No new artwork, request that they load another in preparation for the next load
-                        client.call(METHOD_REQUEST_LOAD)
-                        // Is there any artwork at all?
-                        if (allArtwork.count == 0) {
-                            Log.w(TAG, "Unable to find any artwork for $authority")
-                            return@withContext Result.failure()
-                        }
-                        // Okay so there's at least some artwork.
-                        // Is it just the one artwork we're already showing?
-                        if (allArtwork.count == 1 && allArtwork.moveToFirst()) {
-                            val artworkId = allArtwork.getLong(BaseColumns._ID)
-                            val artworkUri = ContentUris.withAppendedId(contentUri, artworkId)
-                            val currentArtwork = database.artworkDao().getCurrentArtwork()
-                            if (artworkUri == currentArtwork?.imageUri) {
-                                if (BuildConfig.DEBUG) {
-                                    Log.i(TAG, "Provider $authority only has one artwork")
-                                }
-                                return@withContext Result.failure()
-                            }
-                        }
-                        // At this point, we know there must be some artwork that isn't the current
-                        // artwork. We want to avoid showing artwork we've recently loaded, but
-                        // don't want to exclude *all* of the current artwork, so we cut down the
-                        // recent list's size to avoid issues where the provider has deleted a
-                        // large percentage of their artwork
-                        while (recentArtworkIds.size > allArtwork.count / 2) {
-                            recentArtworkIds.removeFirst()
+            loadMutex.withLock {
+                ContentProviderClientCompat.getClient(
+                        applicationContext, contentUri)?.use { client ->
+                    if (prefetch) {
+                        return@withContext prefetchArtwork(client, authority, prefetchQueue)
+                    }
+                    // First use any artwork that is already downloaded and ready to show
+                    while (true) {
+                        val prefetchedId = prefetchQueue.removeFirst() ?: break
+                        val prefetchedArtwork = checkForValidArtwork(
+                                client, contentUri, prefetchedId) ?: continue
+                        prefetchedArtwork.providerAuthority = authority
+                        insertArtwork(client, prefetchedArtwork)
+                        pinPrefetchedArtwork(client, prefetchQueue)
+                        enqueuePrefetch(applicationContext)
+                        return@withContext Result.success()
+                    }
+                    when (val nextArtwork = findNextArtwork(client, authority, emptySet())) {
+                        is NextArtwork.Found -> {
+                            insertArtwork(client, nextArtwork.artwork)
+                            enqueuePrefetch(applicationContext)
+                            return@withContext Result.success()
                         }
-                        // Now find a random piece of artwork that isn't in our previous list
-                        val random = Random()
-                        val randomSequence = generateSequence {
-                            random.nextInt(allArtwork.count)
-                        }.distinct().take(allArtwork.count)
-                        val iterator = randomSequence.iterator()
-                        while (iterator.hasNext()) {
-                            val position = iterator.next()
-                            if (allArtwork.moveToPosition(position)) {
-                                var artworkId = allArtwork.getLong(BaseColumns._ID)
-                                if (recentArtworkIds.contains(artworkId)) {
-                                    if (BuildConfig.DEBUG) {
-                                        Log.v(TAG, "Skipping $artworkId")
-                                    }
-                                    // Skip previously selected artwork
-                                    continue
-                                }
-                                checkForValidArtwork(client, contentUri, allArtwork)?.apply {
-                                    providerAuthority = authority
-                                    artworkId = database.artworkDao().insert(this)
-                                    if (BuildConfig.DEBUG) {
-                                        Log.d(TAG, "Loaded $imageUri into id $artworkId")
-                                    }
-                                    client.call(METHOD_MARK_ARTWORK_LOADED, imageUri.toString())
-                                    return@withContext Result.success()
-                                }
+                        NextArtwork.Unavailable -> return@withContext Result.failure()
+                        NextArtwork.NotFound -> {
+                            if (BuildConfig.DEBUG) {
+                                Log.i(TAG, "Unable to find any other valid artwork for $authority")
                             }
                         }
-                        if (BuildConfig.DEBUG) {
-                            Log.i(TAG, "Unable to find any other valid artwork for $authority")
-                        }
                     }
                 }
             }
@@ -218,6 +268,213 @@ class ArtworkLoadWorker(
         Result.retry()
     }
 
+    private suspend fun insertArtwork(client: ContentProviderClientCompat, artwork: Artwork) {
+        val artworkId = MuzeiDatabase.getInstance(applicationContext).artworkDao().insert(artwork)
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Loaded ${artwork.imageUri} into id $artworkId")
+        }
+        client.call(METHOD_MARK_ARTWORK_LOADED, artwork.imageUri.toString())
+    }
+
+    /**
+     * Add artwork to the [prefetchQueue] until it holds [ProviderManager.prefetchDepth]
+     * artwork. Opening each artwork via [checkForValidArtwork] causes the provider to
+     * download it, so that loading it later only needs to read the local copy.
+     */
+    private suspend fun prefetchArtwork(
+            client: ContentProviderClientCompat,
+            authority: String,
+            prefetchQueue: PrefetchQueue
+    ): Result {
+        val prefetchDepth = ProviderManager.getInstance(applicationContext).prefetchDepth
+        val generation = prefetchGeneration
+        val excludedIds = prefetchQueue.ids.toMutableSet()
+        getCurrentArtworkId(authority)?.let { currentArtworkId ->
+            excludedIds.add(currentArtworkId)
+        }
+        while (prefetchQueue.ids.size < prefetchDepth) {
+            val nextArtwork = findNextArtwork(client, authority, excludedIds)
+            if (nextArtwork !is NextArtwork.Found || generation != prefetchGeneration) {
+                break
+            }
+            val artworkId = ContentUris.parseId(nextArtwork.artwork.imageUri)
+            excludedIds.add(artworkId)
+            // The current artwork may have changed while finding the next artwork
+            if (artworkId == getCurrentArtworkId(authority)) {
+                continue
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Prefetched ${nextArtwork.artwork.imageUri}")
+            }
+            prefetchQueue.add(artworkId)
+        }
+        pinPrefetchedArtwork(client, prefetchQueue)
+        return Result.success()
+    }
+
+    /**
+     * Get the provider's id for the current artwork if it is from the given [authority]
+     */
+    private suspend fun getCurrentArtworkId(authority: String): Long? {
+        val currentArtwork = MuzeiDatabase.getInstance(applicationContext)
+                .artworkDao().getCurrentArtwork()
+        return if (currentArtwork?.providerAuthority == authority) {
+            ContentUris.parseId(currentArtwork.imageUri)
+        } else {
+            null
+        }
+    }
+
+    /**
+     * Tell the provider which artwork is in the [prefetchQueue] so that it is not
+     * evicted from the provider's cache before it is loaded.
+     */
+    private suspend fun pinPrefetchedArtwork(
+            client: ContentProviderClientCompat,
+            prefetchQueue: PrefetchQueue
+    ) {
+        client.call(METHOD_SET_PINNED_ARTWORK_IDS, extras = bundleOf(
+                KEY_PINNED_ARTWORK_IDS to prefetchQueue.ids.toLongArray()))
+    }
+
+    /**
+     * Find the next valid artwork to load, prioritizing new artwork, then falling back to
+     * random artwork that hasn't been recently shown. Artwork in [excludedIds] is skipped.
+     */
+    private suspend fun findNextArtwork(
+            client: ContentProviderClientCompat,
+            authority: String,
+            excludedIds: Set<Long>
+    ): NextArtwork {
+        val contentUri = ProviderContract.getContentUri(authority)
+        val result = client.call(METHOD_GET_LOAD_INFO)
+                ?: return NextArtwork.Unavailable
+        val maxLoadedArtworkId = result.getLong(KEY_MAX_LOADED_ARTWORK_ID, 0L)
+        val recentArtworkIds = result.getRecentIds(KEY_RECENT_ARTWORK_IDS)
+        client.query(
+                contentUri,
+                selection = "_id > ?",
+                selectionArgs = arrayOf(maxLoadedArtworkId.toString()),
+                sortOrder = ProviderContract.Artwork._ID
+        )?.use { newArtwork ->
+            // First prioritize new artwork
+            while (newArtwork.moveToNext()) {
+                if (excludedIds.contains(newArtwork.getLong(BaseColumns._ID))) {
+                    continue
+                }
+                val validArtwork = checkForValidArtwork(client, contentUri, newArtwork)
+                if (validArtwork != null) {
+                    validArtwork.providerAuthority = authority
+                    // If we just found the last new artwork, we should request that they load another
+                    // in preparation for the next load
+                    if (!newArtwork.moveToNext()) {
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "Out of new artwork, requesting load from $authority")
+                        }
+                        client.call(METHOD_REQUEST_LOAD)
+                    }
+                    return NextArtwork.Found(validArtwork)
+                }
+            }
+        } ?: return NextArtwork.NotFound
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Could not find any new artwork, requesting load from $authority")
+        }
+        // No new artwork, request that they load another in preparation for the next load
+        client.call(METHOD_REQUEST_LOAD)
+        return findRandomArtwork(client, authority, recentArtworkIds, excludedIds)
+    }
+
+    /**
+     * Find a random valid artwork that isn't in [recentArtworkIds] or [excludedIds]. The
+     * provider is first asked to pick a batch of random artwork itself, falling back to
+     * shuffling the provider's artwork ids if it doesn't support that or none were valid.
+     */
+    private suspend fun findRandomArtwork(
+            client: ContentProviderClientCompat,
+            authority: String,
+            recentArtworkIds: ArrayDeque<Long>,
+            excludedIds: Set<Long>
+    ): NextArtwork {
+        val contentUri = ProviderContract.getContentUri(authority)
+        val checkedIds = HashSet<Long>()
+        val result = client.call(METHOD_GET_RANDOM_ARTWORK_IDS, extras = bundleOf(
+                KEY_EXCLUDED_ARTWORK_IDS to excludedIds.toLongArray(),
+                KEY_RANDOM_ARTWORK_LIMIT to RANDOM_ARTWORK_LIMIT))
+        // Only the fallback below handles the case of a provider with a single artwork
+        if (result != null && result.getLong(KEY_ARTWORK_COUNT, 0L) > 1) {
+            val randomIds = result.getLongArray(KEY_RANDOM_ARTWORK_IDS) ?: LongArray(0)
+            for (artworkId in randomIds) {
+                checkedIds.add(artworkId)
+                checkForValidArtwork(client, contentUri, artworkId)?.apply {
+                    providerAuthority = authority
+                    return NextArtwork.Found(this)
+                }
+            }
+        }
+        client.query(contentUri, arrayOf(BaseColumns._ID))?.use { allArtwork ->
+            // Is there any artwork at all?
+            if (allArtwork.count == 0) {
+                Log.w(TAG, "Unable to find any artwork for $authority")
+                return NextArtwork.Unavailable
+            }
+            // Okay so there's at least some artwork.
+            // Is it just the one artwork we're already showing?
+            if (allArtwork.count == 1 && allArtwork.moveToFirst()) {
+                val artworkId = allArtwork.getLong(0)
+                val artworkUri = ContentUris.withAppendedId(contentUri, artworkId)
+                val currentArtwork = MuzeiDatabase.getInstance(applicationContext)
+                        .artworkDao().getCurrentArtwork()
+                if (artworkUri == currentArtwork?.imageUri) {
+                    if (BuildConfig.DEBUG) {
+                        Log.i(TAG, "Provider $authority only has one artwork")
+                    }
+                    return NextArtwork.Unavailable
+                }
+            }
+            // At this point, we know there must be some artwork that isn't the current
+            // artwork. We want to avoid showing artwork we've recently loaded, but
+            // don't want to exclude *all* of the current artwork, so we cut down the
+            // recent list's size to avoid issues where the provider has deleted a
+            // large percentage of their artwork
+            while (recentArtworkIds.size > allArtwork.count / 2) {
+                recentArtworkIds.removeFirst()
+            }
+            val skippedIds = recentArtworkIds.toHashSet()
+            // Now find a random piece of artwork that isn't in our previous list
+            for (position in Random().shuffledIndices(allArtwork.count)) {
+                if (allArtwork.moveToPosition(position)) {
+                    val artworkId = allArtwork.getLong(0)
+                    if (skippedIds.contains(artworkId) || excludedIds.contains(artworkId) ||
+                            checkedIds.contains(artworkId)) {
+                        if (BuildConfig.DEBUG) {
+                            Log.v(TAG, "Skipping $artworkId")
+                        }
+                        // Skip previously selected artwork
+                        continue
+                    }
+                    checkForValidArtwork(client, contentUri, artworkId)?.apply {
+                        providerAuthority = authority
+                        return NextArtwork.Found(this)
+                    }
+                }
+            }
+        }
+        return NextArtwork.NotFound
+    }
+
+    private suspend fun checkForValidArtwork(
+            client: ContentProviderClientCompat,
+            contentUri: Uri,
+            artworkId: Long
+    ): Artwork? = client.query(ContentUris.withAppendedId(contentUri, artworkId))?.use { data ->
+        if (data.moveToFirst()) {
+            checkForValidArtwork(client, contentUri, data)
+        } else {
+            null
+        }
+    }
+
     private suspend fun checkForValidArtwork(
             client: ContentProviderClientCompat,
             contentUri: Uri,
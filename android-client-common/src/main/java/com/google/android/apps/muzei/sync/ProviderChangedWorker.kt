@@ -19,12 +19,16 @@ package com.google.android.apps.muzei.sync
 import android.content.ContentUris
 import android.content.Context
 import android.database.Cursor
+import android.graphics.Point
 import android.net.Uri
 import android.os.Build
 import android.util.Log
+import android.view.WindowManager
 import androidx.annotation.RequiresApi
+import androidx.core.content.ContextCompat
 import androidx.core.content.edit
 import androidx.core.net.toUri
+import androidx.core.os.bundleOf
 import androidx.lifecycle.Observer
 import androidx.preference.PreferenceManager
 import androidx.work.Constraints
@@ -36,7 +40,10 @@ import androidx.work.WorkerParameters
 import androidx.work.workDataOf
 import com.google.android.apps.muzei.api.internal.ProtocolConstants
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_LAST_LOADED_TIME
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_IMAGE_HEIGHT
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_IMAGE_WIDTH
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_LOAD_INFO
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_SET_MAX_IMAGE_SIZE
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.render.isValidImage
@@ -49,6 +56,8 @@ import net.nurik.roman.muzei.androidclientcommon.BuildConfig
 import java.io.IOException
 import java.util.HashSet
 import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
 
 /**
  * Worker responsible for setting up the recurring artwork load from a [MuzeiArtProvider] and
@@ -194,9 +203,23 @@ class ProviderChangedWorker(
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "Provider Change ($tag) for ${provider.authority}")
         }
+        if (tag == "changed" || tag == PERSISTENT_CHANGED_TAG) {
+            // Keep the cached description in sync with changes to the provider
+            ProviderManager.refreshDescription(applicationContext, provider.authority)
+            // The prefetched artwork may have been changed or removed, so
+            // start over with the provider's current artwork
+            ArtworkLoadWorker.clearPrefetched(applicationContext)
+        }
         val contentUri = ProviderContract.getContentUri(provider.authority)
         try {
             ContentProviderClientCompat.getClient(applicationContext, contentUri)?.use { client ->
+                // Let the provider know how large the artwork needs to be before it
+                // loads any artwork. Older providers ignore this call.
+                getMaxImageSize()?.let { maxImageSize ->
+                    client.call(METHOD_SET_MAX_IMAGE_SIZE, extras = bundleOf(
+                            KEY_MAX_IMAGE_WIDTH to maxImageSize.x,
+                            KEY_MAX_IMAGE_HEIGHT to maxImageSize.y))
+                }
                 val result = client.call(METHOD_GET_LOAD_INFO)
                         ?: return@withContext Result.retry()
                 val lastLoadedTime = result.getLong(KEY_LAST_LOADED_TIME, 0L)
@@ -241,6 +264,10 @@ class ProviderChangedWorker(
                         Log.d(TAG, "Found at least $validArtworkCount artwork for $provider")
                     }
                     database.providerDao().update(provider)
+                    if (provider.supportsNextArtwork) {
+                        // Keep upcoming artwork downloaded ahead of time
+                        ArtworkLoadWorker.enqueuePrefetch(applicationContext)
+                    }
                     if (validArtworkCount <= 1 && !enqueued) {
                         if (BuildConfig.DEBUG) {
                             Log.d(TAG, "Requesting a load from $provider")
@@ -261,6 +288,22 @@ class ProviderChangedWorker(
         Result.retry()
     }
 
+    /**
+     * Get the real size of the default display in portrait orientation,
+     * the largest size that artwork is scaled to fill.
+     */
+    private fun getMaxImageSize(): Point? {
+        val windowManager = ContextCompat.getSystemService(applicationContext,
+                WindowManager::class.java) ?: return null
+        val size = Point()
+        @Suppress("DEPRECATION")
+        windowManager.defaultDisplay.getRealSize(size)
+        if (size.x <= 0 || size.y <= 0) {
+            return null
+        }
+        return Point(min(size.x, size.y), max(size.x, size.y))
+    }
+
     private suspend fun isCurrentArtworkValid(
             client: ContentProviderClientCompat,
             provider: Provider
@@ -31,14 +31,18 @@ import android.os.Looper
 import android.os.RemoteException
 import android.util.Log
 import androidx.core.content.edit
+import androidx.core.content.pm.PackageInfoCompat
 import androidx.lifecycle.MutableLiveData
+import androidx.lifecycle.asLiveData
 import androidx.lifecycle.Observer
 import androidx.preference.PreferenceManager
 import com.google.android.apps.muzei.api.internal.ProtocolConstants
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.room.Artwork
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.Provider
+import com.google.android.apps.muzei.room.ProviderDescription
 import com.google.android.apps.muzei.util.ContentProviderClientCompat
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
@@ -46,6 +50,7 @@ import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import net.nurik.roman.muzei.androidclientcommon.BuildConfig
+import java.util.Locale
 import java.util.concurrent.Executors
 
 /**
@@ -69,6 +74,10 @@ class ProviderManager private constructor(private val context: Context)
         private const val DEFAULT_LOAD_FREQUENCY_SECONDS = 3600L
         private const val PREF_LOAD_ON_WIFI = "loadOnWifi"
         private const val DEFAULT_LOAD_ON_WIFI = false
+        private const val PREF_PREFETCH_DEPTH = "prefetchDepth"
+        private const val DEFAULT_PREFETCH_DEPTH = 2
+        private const val PREF_ARTWORK_HISTORY_SIZE = "artworkHistorySize"
+        private const val DEFAULT_ARTWORK_HISTORY_SIZE = 100
 
         @SuppressLint("StaticFieldLeak")
         @Volatile
@@ -93,7 +102,14 @@ class ProviderManager private constructor(private val context: Context)
             }
         }
 
-        suspend fun getDescription(context: Context, authority: String): String {
+        suspend fun getDescription(context: Context, authority: String): String =
+                loadDescription(context, authority) ?: ""
+
+        /**
+         * Load the description directly from the provider, returning null if the
+         * provider could not be reached.
+         */
+        private suspend fun loadDescription(context: Context, authority: String): String? {
             val contentUri = Uri.Builder()
                     .scheme(ContentResolver.SCHEME_CONTENT)
                     .authority(authority)
@@ -104,9 +120,85 @@ class ProviderManager private constructor(private val context: Context)
                     result?.getString(ProtocolConstants.KEY_DESCRIPTION, "") ?: ""
                 } catch (e: RemoteException) {
                     Log.i(TAG, "Provider $authority crashed while retrieving description", e)
-                    ""
+                    null
                 }
-            } ?: ""
+            }
+        }
+
+        private fun getPackageVersion(context: Context, authority: String): Long? {
+            val pm = context.packageManager
+            val packageName = pm.resolveContentProvider(authority, 0)?.packageName
+                    ?: return null
+            return try {
+                PackageInfoCompat.getLongVersionCode(pm.getPackageInfo(packageName, 0))
+            } catch (e: PackageManager.NameNotFoundException) {
+                null
+            }
+        }
+
+        /**
+         * Whether the cached [description] was retrieved from the currently installed
+         * version of the provider in the current locale.
+         */
+        fun isDescriptionCurrent(context: Context, description: ProviderDescription) =
+                description.locale == Locale.getDefault().toString() &&
+                        description.packageVersion ==
+                        getPackageVersion(context, description.authority)
+
+        /**
+         * Retrieve the description from the provider, updating the cached description
+         * returned by [getCachedDescription] and
+         * [com.google.android.apps.muzei.room.ProviderDescriptionDao.descriptions].
+         */
+        suspend fun refreshDescription(context: Context, authority: String) {
+            val description = loadDescription(context, authority) ?: return
+            val packageVersion = getPackageVersion(context, authority) ?: return
+            val providerDescription = ProviderDescription(authority, description,
+                    packageVersion, Locale.getDefault().toString())
+            val providerDescriptionDao = MuzeiDatabase.getInstance(context).providerDescriptionDao()
+            // Only write when something changed so observers of the descriptions
+            // aren't woken up on every refresh
+            if (providerDescriptionDao.getDescription(authority) != providerDescription) {
+                providerDescriptionDao.insert(providerDescription)
+            }
+        }
+
+        private val refreshingDescriptions = mutableSetOf<String>()
+
+        /**
+         * Call [refreshDescription] in the background, ignoring the request if the
+         * description is already being refreshed.
+         */
+        fun refreshDescriptionInBackground(context: Context, authority: String) {
+            synchronized(refreshingDescriptions) {
+                if (!refreshingDescriptions.add(authority)) {
+                    return
+                }
+            }
+            GlobalScope.launch {
+                try {
+                    refreshDescription(context, authority)
+                } finally {
+                    synchronized(refreshingDescriptions) {
+                        refreshingDescriptions.remove(authority)
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the cached description of the provider without calling the provider,
+         * refreshing it in the background if it is missing or out of date. This must
+         * not be called on the main thread.
+         */
+        internal fun getCachedDescription(context: Context, authority: String): String {
+            val cachedDescription = MuzeiDatabase.getInstance(context)
+                    .providerDescriptionDao().getDescriptionBlocking(authority)
+            if (cachedDescription == null ||
+                    !isDescriptionCurrent(context, cachedDescription)) {
+                refreshDescriptionInBackground(context, authority)
+            }
+            return cachedDescription?.description ?: ""
         }
     }
 
@@ -136,7 +228,7 @@ class ProviderManager private constructor(private val context: Context)
         MuzeiDatabase.getInstance(context).providerDao().currentProviderLiveData
     }
     private val artworkLiveData by lazy {
-        MuzeiDatabase.getInstance(context).artworkDao().currentArtworkLiveData
+        CurrentArtworkRepository.getInstance(context).currentArtwork.asLiveData()
     }
     private var nextArtworkJob: Job? = null
     private val artworkObserver = Observer<Artwork?> { artwork ->
@@ -181,6 +273,34 @@ class ProviderManager private constructor(private val context: Context)
         get() = PreferenceManager.getDefaultSharedPreferences(context)
                 .getBoolean(PREF_LOAD_ON_WIFI, DEFAULT_LOAD_ON_WIFI)
 
+    /**
+     * The number of upcoming artwork to download and validate ahead of time while on an
+     * unmetered network, allowing 'Next Artwork' to switch artwork immediately.
+     * Set to 0 to disable prefetching.
+     */
+    var prefetchDepth: Int
+        set(newPrefetchDepth) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit {
+                putInt(PREF_PREFETCH_DEPTH, newPrefetchDepth)
+            }
+            ArtworkLoadWorker.enqueuePrefetch(context)
+        }
+        get() = PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(PREF_PREFETCH_DEPTH, DEFAULT_PREFETCH_DEPTH)
+
+    /**
+     * The number of most recent artwork to keep for each provider. Older artwork is
+     * periodically removed by the [ArtworkHistoryWorker].
+     */
+    var artworkHistorySize: Int
+        set(newArtworkHistorySize) {
+            PreferenceManager.getDefaultSharedPreferences(context).edit {
+                putInt(PREF_ARTWORK_HISTORY_SIZE, newArtworkHistorySize)
+            }
+        }
+        get() = PreferenceManager.getDefaultSharedPreferences(context)
+                .getInt(PREF_ARTWORK_HISTORY_SIZE, DEFAULT_ARTWORK_HISTORY_SIZE)
+
     init {
         contentObserver = object : ContentObserver(Handler(Looper.getMainLooper())) {
             override fun onChange(selfChange: Boolean, uri: Uri?) {
@@ -210,6 +330,7 @@ class ProviderManager private constructor(private val context: Context)
         }
         providerLiveData.observeForever(this)
         artworkLiveData.observeForever(artworkObserver)
+        ArtworkHistoryWorker.enqueuePeriodic(context)
         startArtworkLoad()
     }
 
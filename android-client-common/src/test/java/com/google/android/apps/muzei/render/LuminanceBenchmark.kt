@@ -0,0 +1,129 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.render
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import kotlin.random.Random
+
+/**
+ * Micro-benchmark comparing [luminance], which reads a row of pixels at a time and
+ * uses integer channel weights, against the previous approach of reading each pixel
+ * with its own getPixel() call and weighting each channel with float math.
+ *
+ * The timings are printed rather than asserted so that a busy machine can't fail the
+ * build, but both paths must agree on the resulting darkness.
+ */
+class LuminanceBenchmark {
+
+    /**
+     * A stand-in for a [android.graphics.Bitmap], with the same per-pixel and
+     * per-row access as the real class.
+     */
+    private class Pixels(val width: Int, val height: Int) {
+        private val colors = Random(width * 31 + height).let { random ->
+            IntArray(width * height) { random.nextInt() or 0xff000000.toInt() }
+        }
+
+        fun getPixel(x: Int, y: Int) = colors[y * width + x]
+
+        fun getPixels(row: IntArray, y: Int) {
+            System.arraycopy(colors, y * width, row, 0, width)
+        }
+    }
+
+    /**
+     * The darkness computation as it was before [luminance] was added.
+     */
+    private fun Pixels.perPixelDarkness(): Float {
+        var totalLum = 0L
+        var n = 0
+        for (y in 0 until height) {
+            for (x in 0 until width) {
+                ++n
+                val color = getPixel(x, y)
+                totalLum += (0.21f * (color shr 16 and 0xff) +
+                        0.71f * (color shr 8 and 0xff) +
+                        0.07f * (color and 0xff)).toLong()
+            }
+        }
+        return totalLum / n / 256f
+    }
+
+    private fun Pixels.rowDarkness() = luminance(width, height) { row, y ->
+        getPixels(row, y)
+    }.darkness
+
+    /**
+     * Run [block] enough times to warm up the JIT, returning the median time of the
+     * measured runs in nanoseconds.
+     */
+    private inline fun measure(iterations: Int, block: () -> Float): Long {
+        var result = 0f
+        repeat(iterations) {
+            result += block()
+        }
+        val times = LongArray(iterations) {
+            val start = System.nanoTime()
+            result += block()
+            System.nanoTime() - start
+        }
+        // Use the result so that the work can't be optimized away
+        check(!result.isNaN())
+        times.sort()
+        return times[iterations / 2]
+    }
+
+    private fun benchmark(name: String, width: Int, height: Int, iterations: Int) {
+        val pixels = Pixels(width, height)
+        assertEquals(pixels.perPixelDarkness(), pixels.rowDarkness(), 2 / 256f)
+
+        val perPixel = measure(iterations) { pixels.perPixelDarkness() }
+        val row = measure(iterations) { pixels.rowDarkness() }
+        println("$name (${width}x$height): getPixel ${perPixel / 1000} µs, " +
+                "getPixels ${row / 1000} µs, " +
+                "speedup ${"%.2f".format(perPixel.toFloat() / row)}x")
+    }
+
+    @Test
+    fun smallArtwork() {
+        // The size MuzeiBlurRenderer decodes artwork at to measure its darkness
+        benchmark("64px", 64, 64, iterations = 2000)
+    }
+
+    @Test
+    fun fullSizeArtwork() {
+        benchmark("Full size", 4032, 3024, iterations = 10)
+    }
+
+    @Test
+    fun histogramCoversEveryPixel() {
+        val pixels = Pixels(64, 48)
+        val luminance = luminance(pixels.width, pixels.height) { row, y ->
+            pixels.getPixels(row, y)
+        }
+        assertEquals(pixels.width * pixels.height, luminance.pixelCount)
+        assertEquals(luminance.pixelCount, luminance.histogram.sum())
+    }
+
+    @Test
+    fun emptyImage() {
+        val luminance = luminance(0, 0) { _, _ -> }
+        assertEquals(0, luminance.pixelCount)
+        assertEquals(0f, luminance.darkness, 0f)
+    }
+}
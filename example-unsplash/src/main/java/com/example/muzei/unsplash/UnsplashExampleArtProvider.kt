@@ -76,9 +76,10 @@ class UnsplashExampleArtProvider : MuzeiArtProvider() {
 
     override fun openFile(artwork: Artwork): InputStream {
         return super.openFile(artwork).also {
+            val context = context ?: return@also
             artwork.token?.run {
                 try {
-                    UnsplashService.trackDownload(this)
+                    UnsplashService.trackDownload(context, this)
                 } catch (e: IOException) {
                     Log.w(TAG, "Error reporting download to Unsplash", e)
                 }
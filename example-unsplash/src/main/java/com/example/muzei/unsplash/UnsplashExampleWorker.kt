@@ -18,7 +18,6 @@ package com.example.muzei.unsplash
 
 import android.content.Context
 import android.util.Log
-import androidx.core.net.toUri
 import androidx.work.Constraints
 import androidx.work.NetworkType
 import androidx.work.OneTimeWorkRequestBuilder
@@ -50,7 +49,7 @@ class UnsplashExampleWorker(
 
     override fun doWork(): Result {
         val photos = try {
-            UnsplashService.popularPhotos()
+            UnsplashService.popularPhotos(applicationContext)
         } catch (e: IOException) {
             Log.w(TAG, "Error reading Unsplash response", e)
             return Result.retry()
@@ -64,13 +63,14 @@ class UnsplashExampleWorker(
         val providerClient = ProviderContract.getProviderClient(
                 applicationContext, UNSPLASH_AUTHORITY)
         val attributionString = applicationContext.getString(R.string.attribution)
+        val maxImageSize = providerClient.maxImageSize
         providerClient.addArtwork(photos.map { photo ->
             Artwork(
                     token = photo.id,
                     title = photo.description ?: attributionString,
                     byline = photo.user.name,
                     attribution = if (photo.description != null) attributionString else null,
-                    persistentUri = photo.urls.full.toUri(),
+                    persistentUri = photo.getImageUri(maxImageSize),
                     webUri = photo.links.webUri,
                     metadata = photo.user.links.webUri.toString())
         })
@@ -16,8 +16,11 @@
 
 package com.example.muzei.unsplash
 
+import android.content.Context
+import android.graphics.Point
+import android.net.Uri
 import androidx.core.net.toUri
-import okhttp3.OkHttpClient
+import com.google.android.apps.muzei.api.provider.MuzeiHttpClient
 import retrofit2.Call
 import retrofit2.Retrofit
 import retrofit2.converter.moshi.MoshiConverterFactory
@@ -25,13 +28,24 @@ import retrofit2.create
 import retrofit2.http.GET
 import retrofit2.http.Path
 import java.io.IOException
+import kotlin.math.ceil
+import kotlin.math.max
 
 internal interface UnsplashService {
 
     companion object {
 
-        private fun createService() : UnsplashService {
-            val okHttpClient = OkHttpClient.Builder()
+        @Volatile
+        private var service: UnsplashService? = null
+
+        private fun getService(context: Context): UnsplashService =
+                service ?: synchronized(this) {
+                    service ?: createService(context).also { service = it }
+                }
+
+        private fun createService(context: Context) : UnsplashService {
+            // Build on the shared client to reuse its connection pool and HTTP cache
+            val okHttpClient = MuzeiHttpClient.getInstance(context).newBuilder()
                     .addInterceptor { chain ->
                         var request = chain.request()
                         val url = request.url().newBuilder()
@@ -51,14 +65,14 @@ internal interface UnsplashService {
         }
 
         @Throws(IOException::class)
-        internal fun popularPhotos(): List<Photo> {
-            return createService().popularPhotos.execute().body()
+        internal fun popularPhotos(context: Context): List<Photo> {
+            return getService(context).popularPhotos.execute().body()
                     ?: throw IOException("Response was null")
         }
 
         @Throws(IOException::class)
-        internal fun trackDownload(photoId: String) {
-            createService().trackDownload(photoId).execute()
+        internal fun trackDownload(context: Context, photoId: String) {
+            getService(context).trackDownload(photoId).execute()
         }
     }
 
@@ -70,12 +84,36 @@ internal interface UnsplashService {
 
     data class Photo(
             val id: String,
+            val width: Int,
+            val height: Int,
             val urls: Urls,
             val description: String?,
             val user: User,
-            val links: Links)
+            val links: Links) {
+        /**
+         * Get the URI of the smallest image that still covers [maxImageSize], using
+         * Unsplash's dynamic resizing of the raw image. The full size image is used
+         * if there's no [maxImageSize] or the photo is already smaller than it.
+         */
+        fun getImageUri(maxImageSize: Point?): Uri {
+            if (maxImageSize == null || width <= 0 || height <= 0) {
+                return urls.full.toUri()
+            }
+            val scale = max(maxImageSize.x.toFloat() / width,
+                    maxImageSize.y.toFloat() / height)
+            if (scale >= 1f) {
+                return urls.full.toUri()
+            }
+            return urls.raw.toUri().buildUpon()
+                    .appendQueryParameter("w", ceil(width * scale).toInt().toString())
+                    .appendQueryParameter("fit", "max")
+                    .appendQueryParameter("fm", "jpg")
+                    .appendQueryParameter("q", "85")
+                    .build()
+        }
+    }
 
-    data class Urls(val full: String)
+    data class Urls(val raw: String, val full: String)
 
     data class Links(val html: String) {
         val webUri get() = "$html$ATTRIBUTION_QUERY_PARAMETERS".toUri()
@@ -30,8 +30,9 @@ import kotlinx.coroutines.channels.sendBlocking
 import kotlinx.coroutines.flow.Flow
 import kotlinx.coroutines.flow.MutableSharedFlow
 import kotlinx.coroutines.flow.callbackFlow
-import kotlinx.coroutines.flow.combine
 import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.map
 import java.io.FileNotFoundException
 
 /**
@@ -50,11 +51,20 @@ class ArtworkImageLoader(private val context: Context) {
             requestSizeSharedFlow.tryEmit(value)
         }
 
-    private val unsizedArtworkFlow: Flow<Bitmap> = callbackFlow {
+    /**
+     * Load the current artwork, using a rendition at least as large as the given
+     * [size] (if any) to avoid decoding the full size artwork
+     */
+    private fun getArtworkFlow(size: Size?): Flow<Bitmap> = callbackFlow {
         // Create a lambda that should be ran to update the artwork
         val updateArtwork = {
             try {
-                MuzeiContract.Artwork.getCurrentArtworkBitmap(context)?.run {
+                if (size != null) {
+                    MuzeiContract.Artwork.getCurrentArtworkBitmap(context,
+                            size.width, size.height)
+                } else {
+                    MuzeiContract.Artwork.getCurrentArtworkBitmap(context)
+                }?.run {
                     sendBlocking(this)
                 }
             } catch (e: FileNotFoundException) {
@@ -78,21 +88,21 @@ class ArtworkImageLoader(private val context: Context) {
         }
     }
 
-    val artworkFlow = unsizedArtworkFlow.combine(
-            requestSizeSharedFlow.distinctUntilChanged()
-    ) { image, size ->
-        // Resize the image to the specified size
-        when {
-            size == null -> image
-            image.width > image.height -> {
-                val scalingFactor = size.height * 1f / image.height
-                Bitmap.createScaledBitmap(image, (scalingFactor * image.width).toInt(),
-                        size.height, true)
-            }
-            else -> {
-                val scalingFactor = size.width * 1f / image.width
-                Bitmap.createScaledBitmap(image, size.width,
-                        (scalingFactor * image.height).toInt(), true)
+    val artworkFlow = requestSizeSharedFlow.distinctUntilChanged().flatMapLatest { size ->
+        getArtworkFlow(size).map { image ->
+            // Resize the image to the specified size
+            when {
+                size == null -> image
+                image.width > image.height -> {
+                    val scalingFactor = size.height * 1f / image.height
+                    Bitmap.createScaledBitmap(image, (scalingFactor * image.width).toInt(),
+                            size.height, true)
+                }
+                else -> {
+                    val scalingFactor = size.width * 1f / image.width
+                    Bitmap.createScaledBitmap(image, size.width,
+                            (scalingFactor * image.height).toInt(), true)
+                }
             }
         }
     }
@@ -15,6 +15,7 @@
  */
 package com.google.android.apps.muzei.legacy;
 
+import android.content.Context;
 import android.os.Build;
 import android.util.Log;
 
@@ -22,13 +23,13 @@ import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import androidx.annotation.NonNull;
+import com.google.android.apps.muzei.api.provider.MuzeiHttpClient;
 import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 import okhttp3.TlsVersion;
@@ -38,19 +39,17 @@ import okhttp3.TlsVersion;
  */
 public class OkHttpClientFactory {
     private static final String TAG = "OkHttpClientFactory";
-    private static final int DEFAULT_READ_TIMEOUT = 30; // in seconds
-    private static final int DEFAULT_CONNECT_TIMEOUT = 15; // in seconds
 
     /**
      * Creates an OkHttpClient optionally enabling TLS
+     * @param context Context used to retrieve the shared MuzeiHttpClient
      * @param enableTLS Whether TLS should be enabled
      * @return a valid OkHttpClient
      */
     @NonNull
-    private static OkHttpClient getNewOkHttpClient(boolean enableTLS) {
-        OkHttpClient.Builder client = new OkHttpClient.Builder()
-                .connectTimeout(DEFAULT_CONNECT_TIMEOUT, TimeUnit.SECONDS)
-                .readTimeout(DEFAULT_READ_TIMEOUT, TimeUnit.SECONDS);
+    private static OkHttpClient getNewOkHttpClient(@NonNull Context context, boolean enableTLS) {
+        // Build on the shared client to reuse its connection pool, timeouts, and HTTP cache
+        OkHttpClient.Builder client = MuzeiHttpClient.getInstance(context).newBuilder();
         if (enableTLS) {
             enableTls12(client);
         }
@@ -59,11 +58,12 @@ public class OkHttpClientFactory {
 
     /**
      * Creates a new OkHttpClient detecting if TLS needs to be enabled
+     * @param context Context used to retrieve the shared MuzeiHttpClient
      * @return a valid OkHttpClient
      */
     @NonNull
-    public static OkHttpClient getNewOkHttpsSafeClient() {
-        return getNewOkHttpClient(isTLSEnableNeeded());
+    public static OkHttpClient getNewOkHttpsSafeClient(@NonNull Context context) {
+        return getNewOkHttpClient(context, isTLSEnableNeeded());
     }
 
     /**
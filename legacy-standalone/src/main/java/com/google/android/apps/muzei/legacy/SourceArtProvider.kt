@@ -31,6 +31,7 @@ import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.launch
 import net.nurik.roman.muzei.legacy.BuildConfig
 import net.nurik.roman.muzei.legacy.R
+import okhttp3.CacheControl
 import okhttp3.Request
 import java.io.IOException
 import java.net.URISyntaxException
@@ -45,7 +46,9 @@ class SourceArtProvider : MuzeiArtProvider() {
         private const val TAG = "SourceArtProvider"
     }
 
-    private val client by lazy { OkHttpClientFactory.getNewOkHttpsSafeClient() }
+    private val client by lazy {
+        OkHttpClientFactory.getNewOkHttpsSafeClient(requireNotNull(context))
+    }
 
     override fun onLoadRequested(initial: Boolean) {
         if (initial) {
@@ -139,7 +142,10 @@ class SourceArtProvider : MuzeiArtProvider() {
             artwork.persistentUri?.takeIf {
                 it.scheme == "http" || it.scheme == "https"
             }?.run {
-                val request = Request.Builder().url(URL(toString())).build()
+                // The image is stored in the artwork's data file, so skip the HTTP cache
+                val request = Request.Builder().url(URL(toString()))
+                        .cacheControl(CacheControl.Builder().noStore().build())
+                        .build()
                 val response = client.newCall(request).execute()
                 val responseCode = response.code()
                 if (responseCode !in 200..299) {
@@ -56,6 +56,7 @@ import com.google.android.apps.muzei.render.ContentUriImageLoader
 import com.google.android.apps.muzei.render.SwitchingPhotosDone
 import com.google.android.apps.muzei.render.SwitchingPhotosInProgress
 import com.google.android.apps.muzei.render.SwitchingPhotosStateFlow
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.getCommands
 import com.google.android.apps.muzei.room.openArtworkInfo
@@ -101,7 +102,7 @@ class ArtDetailViewModel(application: Application) : AndroidViewModel(applicatio
     val currentProvider = database.providerDao().currentProvider
             .stateIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), null)
 
-    val currentArtwork = database.artworkDao().currentArtwork
+    val currentArtwork = CurrentArtworkRepository.getInstance(application).currentArtwork
             .stateIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), null)
 }
 
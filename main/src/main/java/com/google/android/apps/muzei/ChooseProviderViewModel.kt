@@ -33,12 +33,15 @@ import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.getInstalledProviders
 import com.google.android.apps.muzei.sync.ProviderManager
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.flowOn
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.launch
 
 data class ProviderInfo(
         val authority: String,
@@ -134,13 +137,15 @@ class ChooseProviderViewModel(application: Application) : AndroidViewModel(appli
     }
 
     /**
-     * An authority to description map used to avoid querying each
+     * An authority to cached description map, avoiding querying each
      * MuzeiArtProvider every time.
      */
-    private val descriptions = mutableMapOf<String, String>()
+    private val descriptions = database.providerDescriptionDao().descriptions.map { descriptions ->
+        descriptions.associateBy { it.authority }
+    }
     /**
      * MutableStateFlow that should be updated with the current nano time
-     * when the descriptions are invalidated.
+     * when the descriptions may no longer be current.
      */
     private val descriptionInvalidationNanoTime = MutableStateFlow(0L)
 
@@ -149,45 +154,45 @@ class ChooseProviderViewModel(application: Application) : AndroidViewModel(appli
      * - The set of installed providers
      * - the currently selected provider
      * - the current artwork for each provider
+     * - the cached description of each provider
      * - the input signal for when the descriptions have been invalidated (we don't
-     * care about the value, but we do want to recompute the [ProviderInfo] values)
+     * care about the value, but we do want to recheck the cached descriptions)
      */
     val providers = combine(
             installedProviders,
             currentProviderAuthority,
             currentArtworkByProvider,
+            descriptions,
             descriptionInvalidationNanoTime
-    ) { installedProviders, providerAuthority, artworkForProvider, _ ->
+    ) { installedProviders, providerAuthority, artworkForProvider, descriptions, _ ->
         installedProviders.map { providerInfo ->
             val authority = providerInfo.authority
             val selected = authority == providerAuthority
-            val description = descriptions[authority] ?: run {
-                // Populate the description if we don't already have one
-                val newDescription = ProviderManager.getDescription(application, authority)
-                descriptions[authority] = newDescription
-                newDescription
+            val cachedDescription = descriptions[authority]
+            if (cachedDescription == null ||
+                    !ProviderManager.isDescriptionCurrent(application, cachedDescription)) {
+                // Show the cached description (if any) while the new one loads
+                ProviderManager.refreshDescriptionInBackground(application, authority)
             }
             val currentArtwork = artworkForProvider[authority]
             providerInfo.copy(
                     selected = selected,
-                    description = description,
+                    description = cachedDescription?.description,
                     currentArtworkUri = currentArtwork?.imageUri
             )
         }.sortedWith(comparator)
-    }.shareIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), 1)
+    }.flowOn(Dispatchers.Default).shareIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), 1)
 
     internal fun refreshDescription(authority: String) {
-        // Remove the current description and trigger the invalidation
-        // to recompute the description
-        descriptions.remove(authority)
-        descriptionInvalidationNanoTime.value = System.nanoTime()
+        viewModelScope.launch {
+            ProviderManager.refreshDescription(getApplication(), authority)
+        }
     }
 
     private val localeChangeReceiver = object : BroadcastReceiver() {
         override fun onReceive(context: Context, intent: Intent) {
-            // Our cached descriptions need to be invalidated when the locale changes
+            // Our cached descriptions need to be rechecked when the locale changes
             // so that we re-query for descriptions in the new language
-            descriptions.clear()
             descriptionInvalidationNanoTime.value = System.nanoTime()
         }
     }
@@ -41,12 +41,14 @@ import androidx.lifecycle.lifecycleScope
 import com.google.android.apps.muzei.featuredart.BuildConfig.FEATURED_ART_AUTHORITY
 import com.google.android.apps.muzei.legacy.LegacySourceManager
 import com.google.android.apps.muzei.notifications.NotificationUpdater
-import com.google.android.apps.muzei.render.ImageLoader
 import com.google.android.apps.muzei.render.MuzeiBlurRenderer
 import com.google.android.apps.muzei.render.RealRenderController
 import com.google.android.apps.muzei.render.RenderController
+import com.google.android.apps.muzei.render.RenditionStore
 import com.google.android.apps.muzei.room.Artwork
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.ProviderCommandsCache
 import com.google.android.apps.muzei.room.openArtworkInfo
 import com.google.android.apps.muzei.settings.EffectsLockScreenOpen
 import com.google.android.apps.muzei.settings.Prefs
@@ -99,6 +101,7 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
         with(wallpaperLifecycle) {
             addObserver(WorkManagerInitializer.initializeObserver(this@MuzeiWallpaperService))
             addObserver(LegacySourceManager.getInstance(this@MuzeiWallpaperService))
+            addObserver(ProviderCommandsCache.prefetchObserver(this@MuzeiWallpaperService))
             addObserver(NotificationUpdater(this@MuzeiWallpaperService))
             addObserver(WearableController(this@MuzeiWallpaperService))
             addObserver(WidgetUpdater(this@MuzeiWallpaperService))
@@ -206,8 +209,9 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
             engineLifecycle.addObserver(WallpaperAnalytics(this@MuzeiWallpaperService))
             engineLifecycle.addObserver(LockscreenObserver(this@MuzeiWallpaperService, this))
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
-                val database = MuzeiDatabase.getInstance(this@MuzeiWallpaperService)
-                database.artworkDao().currentArtwork.filterNotNull().onEach { artwork ->
+                val currentArtworkRepository = CurrentArtworkRepository
+                        .getInstance(this@MuzeiWallpaperService)
+                currentArtworkRepository.currentArtwork.filterNotNull().onEach { artwork ->
                     updateCurrentArtwork(artwork)
                 }.launchWhenStartedIn(this)
             }
@@ -243,9 +247,8 @@ class MuzeiWallpaperService : GLWallpaperService(), LifecycleOwner {
 
         @RequiresApi(Build.VERSION_CODES.O_MR1)
         private suspend fun updateCurrentArtwork(artwork: Artwork) {
-            currentArtwork = ImageLoader.decode(
-                    contentResolver, artwork.contentUri,
-                    MAX_ARTWORK_SIZE / 2) ?: return
+            currentArtwork = RenditionStore.getInstance(this@MuzeiWallpaperService)
+                    .decode(artwork.id, MAX_ARTWORK_SIZE / 2) ?: return
             notifyColorsChanged()
         }
 
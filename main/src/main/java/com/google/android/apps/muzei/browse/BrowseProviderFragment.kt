@@ -28,8 +28,8 @@ import androidx.lifecycle.LifecycleOwner
 import androidx.lifecycle.lifecycleScope
 import androidx.navigation.fragment.findNavController
 import androidx.navigation.fragment.navArgs
+import androidx.paging.PagingDataAdapter
 import androidx.recyclerview.widget.DiffUtil
-import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout
 import coil.load
@@ -92,7 +92,7 @@ class BrowseProviderFragment: Fragment(R.layout.browse_provider_fragment) {
 
         viewModel.contentUri = args.contentUri
         viewModel.artwork.onEach {
-            adapter.submitList(it)
+            adapter.submitData(it)
         }.launchWhenStartedIn(viewLifecycleOwner)
     }
 
@@ -172,7 +172,7 @@ class BrowseProviderFragment: Fragment(R.layout.browse_provider_fragment) {
         }
     }
 
-    inner class Adapter: ListAdapter<Artwork, ArtViewHolder>(
+    inner class Adapter: PagingDataAdapter<Artwork, ArtViewHolder>(
             object: DiffUtil.ItemCallback<Artwork>() {
                 override fun areItemsTheSame(artwork1: Artwork, artwork2: Artwork) =
                         artwork1.imageUri == artwork2.imageUri
@@ -186,7 +186,9 @@ class BrowseProviderFragment: Fragment(R.layout.browse_provider_fragment) {
                         BrowseProviderItemBinding.inflate(layoutInflater, parent, false))
 
         override fun onBindViewHolder(holder: ArtViewHolder, position: Int) {
-            holder.bind(getItem(position))
+            getItem(position)?.let { artwork ->
+                holder.bind(artwork)
+            }
         }
     }
 }
@@ -17,32 +17,28 @@
 package com.google.android.apps.muzei.browse
 
 import android.app.Application
-import android.content.ContentUris
-import android.database.ContentObserver
 import android.net.Uri
 import androidx.lifecycle.AndroidViewModel
 import androidx.lifecycle.viewModelScope
-import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.util.ContentProviderClientCompat
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.cachedIn
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.FlowPreview
-import kotlinx.coroutines.Job
 import kotlinx.coroutines.channels.BufferOverflow
-import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.flow.MutableSharedFlow
-import kotlinx.coroutines.flow.SharingStarted
-import kotlinx.coroutines.flow.callbackFlow
 import kotlinx.coroutines.flow.distinctUntilChanged
 import kotlinx.coroutines.flow.flatMapLatest
-import kotlinx.coroutines.flow.shareIn
-import kotlinx.coroutines.isActive
-import kotlinx.coroutines.launch
 
 @OptIn(ExperimentalCoroutinesApi::class, FlowPreview::class)
 class BrowseProviderViewModel(
         application: Application
 ): AndroidViewModel(application) {
 
+    companion object {
+        private const val PAGE_SIZE = 48
+    }
+
     private val contentUriSharedFlow = MutableSharedFlow<Uri>(
             replay = 1,
             onBufferOverflow = BufferOverflow.DROP_OLDEST)
@@ -52,52 +48,10 @@ class BrowseProviderViewModel(
             contentUriSharedFlow.tryEmit(value)
         }
 
-    private fun getProviderArtwork(contentUri: Uri) = callbackFlow {
-        val context = getApplication<Application>()
-        val authority: String = contentUri.authority
-                ?: throw IllegalArgumentException("Invalid contentUri $contentUri")
-        val contentProviderClient = ContentProviderClientCompat.getClient(
-                context, contentUri)
-        var refreshJob: Job? = null
-        val refreshArt = {
-            refreshJob?.cancel()
-            refreshJob = launch {
-                val list = mutableListOf<Artwork>()
-                contentProviderClient?.query(contentUri)?.use { data ->
-                    while(data.moveToNext() && isActive) {
-                        val providerArtwork =
-                                com.google.android.apps.muzei.api.provider.Artwork.fromCursor(data)
-                        list.add(Artwork(ContentUris.withAppendedId(contentUri,
-                                providerArtwork.id)).apply {
-                            title = providerArtwork.title
-                            byline = providerArtwork.byline
-                            attribution = providerArtwork.attribution
-                            providerAuthority = authority
-                        })
-                    }
-                }
-                send(list)
-            }
-        }
-        val contentObserver = object : ContentObserver(null) {
-            override fun onChange(selfChange: Boolean, uri: Uri?) {
-                refreshArt()
-            }
-        }
-        context.contentResolver.registerContentObserver(
-                contentUri,
-                true,
-                contentObserver)
-        refreshArt()
-
-        awaitClose {
-            context.contentResolver.unregisterContentObserver(contentObserver)
-            contentProviderClient?.close()
-        }
-    }
-
     val artwork = contentUriSharedFlow.distinctUntilChanged()
             .flatMapLatest { contentUri ->
-                getProviderArtwork(contentUri)
-            }.shareIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), 1)
+                Pager(PagingConfig(pageSize = PAGE_SIZE, enablePlaceholders = false)) {
+                    ProviderArtworkPagingSource(getApplication(), contentUri)
+                }.flow
+            }.cachedIn(viewModelScope)
 }
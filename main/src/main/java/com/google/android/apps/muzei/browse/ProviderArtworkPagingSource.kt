@@ -0,0 +1,133 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.browse
+
+import android.content.ContentUris
+import android.content.Context
+import android.database.ContentObserver
+import android.net.Uri
+import android.os.RemoteException
+import android.provider.BaseColumns
+import androidx.paging.PagingSource
+import androidx.paging.PagingState
+import com.google.android.apps.muzei.room.Artwork
+import com.google.android.apps.muzei.util.ContentProviderClientCompat
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+
+/**
+ * A [PagingSource] that loads the artwork of the provider at [contentUri] a page at a time,
+ * newest first (in descending order of the provider's artwork ids).
+ *
+ * Pages are keyed by artwork id so that each page only queries the rows older (or newer)
+ * than the page it is adjacent to, rather than skipping over every earlier row. Any change to
+ * the provider's artwork invalidates the source.
+ */
+class ProviderArtworkPagingSource(
+        context: Context,
+        private val contentUri: Uri
+) : PagingSource<Long, Artwork>() {
+
+    private val authority: String = contentUri.authority
+            ?: throw IllegalArgumentException("Invalid contentUri $contentUri")
+    private val contentProviderClient = ContentProviderClientCompat.getClient(
+            context, contentUri)
+
+    init {
+        val contentResolver = context.contentResolver
+        val contentObserver = object : ContentObserver(null) {
+            override fun onChange(selfChange: Boolean, uri: Uri?) {
+                invalidate()
+            }
+        }
+        contentResolver.registerContentObserver(contentUri, true, contentObserver)
+        registerInvalidatedCallback {
+            contentResolver.unregisterContentObserver(contentObserver)
+            contentProviderClient?.close()
+        }
+    }
+
+    override fun getRefreshKey(state: PagingState<Long, Artwork>): Long? {
+        val anchorPosition = state.anchorPosition ?: return null
+        // Start the refresh a little before the anchor so that the visible
+        // artwork is loaded as part of the initial page
+        val position = (anchorPosition - state.config.initialLoadSize / 2)
+                .coerceAtLeast(0)
+        return state.closestItemToPosition(position)?.providerArtworkId
+    }
+
+    override suspend fun load(params: LoadParams<Long>): LoadResult<Long, Artwork> {
+        val client = contentProviderClient
+                ?: return LoadResult.Error(IllegalStateException(
+                        "Unable to connect to $authority"))
+        val key = params.key
+        val (selection, sortOrder) = when {
+            key == null -> null to "${BaseColumns._ID} DESC"
+            params is LoadParams.Refresh -> "${BaseColumns._ID} <= ?" to "${BaseColumns._ID} DESC"
+            params is LoadParams.Append -> "${BaseColumns._ID} < ?" to "${BaseColumns._ID} DESC"
+            else -> "${BaseColumns._ID} > ?" to "${BaseColumns._ID} ASC"
+        }
+        val artworkList = try {
+            // MuzeiArtProvider doesn't support a separate limit argument,
+            // but does pass the sort order through to SQLite as is
+            client.query(contentUri,
+                    selection = selection,
+                    selectionArgs = key?.let { arrayOf(it.toString()) },
+                    sortOrder = "$sortOrder LIMIT ${params.loadSize}"
+            )?.use { data ->
+                withContext(Dispatchers.IO) {
+                    val list = mutableListOf<Artwork>()
+                    // Only read up to the requested number of rows,
+                    // even if the provider ignored the limit
+                    while (list.size < params.loadSize && data.moveToNext()) {
+                        val providerArtwork =
+                                com.google.android.apps.muzei.api.provider.Artwork.fromCursor(data)
+                        list.add(Artwork(ContentUris.withAppendedId(contentUri,
+                                providerArtwork.id)).apply {
+                            title = providerArtwork.title
+                            byline = providerArtwork.byline
+                            attribution = providerArtwork.attribution
+                            providerAuthority = authority
+                        })
+                    }
+                    list
+                }
+            } ?: emptyList()
+        } catch (e: RemoteException) {
+            return LoadResult.Error(e)
+        }
+        val endReached = artworkList.size < params.loadSize
+        return if (params is LoadParams.Prepend) {
+            val page = artworkList.asReversed()
+            LoadResult.Page(page,
+                    prevKey = if (endReached) null else page.firstOrNull()?.providerArtworkId,
+                    nextKey = null)
+        } else {
+            LoadResult.Page(artworkList,
+                    // Only the first page loaded from the beginning has nothing before it
+                    prevKey = if (key == null) {
+                        null
+                    } else {
+                        artworkList.firstOrNull()?.providerArtworkId ?: key
+                    },
+                    nextKey = if (endReached) null else artworkList.lastOrNull()?.providerArtworkId)
+        }
+    }
+
+    private val Artwork.providerArtworkId
+        get() = ContentUris.parseId(imageUri)
+}
@@ -36,7 +36,7 @@ import com.google.android.apps.muzei.ArtDetailOpen
 import com.google.android.apps.muzei.ArtworkInfoRedirectActivity
 import com.google.android.apps.muzei.legacy.LegacySourceManager
 import com.google.android.apps.muzei.legacy.allowsNextArtwork
-import com.google.android.apps.muzei.render.ContentUriImageLoader
+import com.google.android.apps.muzei.render.RenditionStore
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.getCommands
 import com.google.android.apps.muzei.util.goAsync
@@ -109,7 +109,6 @@ class NewWallpaperNotificationReceiver : BroadcastReceiver() {
                 return
             }
 
-            val contentResolver = context.contentResolver
             val provider = MuzeiDatabase.getInstance(context)
                     .providerDao()
                     .getCurrentProvider()
@@ -129,9 +128,9 @@ class NewWallpaperNotificationReceiver : BroadcastReceiver() {
             }
             val largeIconHeight = context.resources
                     .getDimensionPixelSize(android.R.dimen.notification_large_icon_height)
-            val imageLoader = ContentUriImageLoader(contentResolver, artwork.contentUri)
-            val largeIcon = imageLoader.decode(largeIconHeight) ?: return
-            val bigPicture = imageLoader.decode(400) ?: return
+            val renditionStore = RenditionStore.getInstance(context)
+            val largeIcon = renditionStore.decode(artwork.id, largeIconHeight) ?: return
+            val bigPicture = renditionStore.decode(artwork.id, 400) ?: return
 
             createNotificationChannel(context)
 
@@ -19,7 +19,7 @@ package com.google.android.apps.muzei.notifications
 import android.content.Context
 import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.LifecycleOwner
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.onEach
@@ -31,8 +31,8 @@ class NotificationUpdater(private val context: Context) : DefaultLifecycleObserv
 
     override fun onCreate(owner: LifecycleOwner) {
         // Update notifications whenever the artwork changes
-        val database = MuzeiDatabase.getInstance(context)
-        database.artworkDao().currentArtwork.filterNotNull().onEach {
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+        currentArtworkRepository.currentArtwork.filterNotNull().onEach {
             NewWallpaperNotificationReceiver
                     .maybeShowNewArtworkNotification(context)
         }.launchWhenStartedIn(owner)
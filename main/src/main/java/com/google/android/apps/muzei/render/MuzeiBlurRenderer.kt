@@ -25,6 +25,7 @@ import android.opengl.GLES20
 import android.opengl.GLSurfaceView
 import android.opengl.Matrix
 import android.util.Log
+import android.util.LruCache
 import android.view.animation.AccelerateDecelerateInterpolator
 import androidx.annotation.Keep
 import com.google.android.apps.muzei.ArtDetailOpen
@@ -37,10 +38,13 @@ import com.google.android.apps.muzei.util.floorEven
 import com.google.android.apps.muzei.util.interpolate
 import com.google.android.apps.muzei.util.roundMult4
 import com.google.android.apps.muzei.util.uninterpolate
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.ensureActive
 import kotlinx.coroutines.flow.MutableStateFlow
 import javax.microedition.khronos.egl.EGLConfig
 import javax.microedition.khronos.opengles.GL10
+import kotlin.coroutines.coroutineContext
 import kotlin.math.ceil
 import kotlin.math.floor
 import kotlin.math.max
@@ -80,26 +84,53 @@ class MuzeiBlurRenderer(
         private const val DEMO_DIM = 64
         private const val DEMO_GREY = 0
         private const val DIM_RANGE = 0.5f // percent of max dim
+        // Enough for the home screen and lock screen renditions of the current artwork
+        private const val RENDITION_CACHE_SIZE = 2
     }
 
+    /**
+     * Uniquely identifies the keyframes generated for an artwork with a given set
+     * of effects at a given viewport height. Captured once when preparing a picture
+     * set so that every keyframe is generated with the same parameters.
+     */
+    internal data class RenditionKey(
+            val artworkId: Long?,
+            val maxPrescaledBlurPixels: Int,
+            val blurredSampleSize: Int,
+            val maxGrey: Int,
+            val maxDim: Int,
+            val height: Int
+    )
+
+    /**
+     * The blur radius and the sample size it is applied at, which are computed
+     * together and must always be read as a pair.
+     */
+    private class BlurSizing(val maxPrescaledBlurPixels: Int, val blurredSampleSize: Int)
+
     private val blurKeyframes: Int
-    private var maxPrescaledBlurPixels: Int = 0
-    private var blurredSampleSize: Int = 0
+    private val renditionCache: LruCache<RenditionKey, PreparedPictureSet>?
+    @Volatile
+    private var blurSizing = BlurSizing(0, 0)
+    @Volatile
     private var maxDim: Int = 0
+    @Volatile
     private var maxGrey: Int = 0
 
     // Model and view matrices. Projection and MVP stored in picture set
     private val modelMatrix = FloatArray(16)
     private val viewMatrix = FloatArray(16)
 
+    @Volatile
     private var aspectRatio: Float = 0f
+    @Volatile
     private var currentHeight: Int = 0
 
     private var currentGLPictureSet: GLPictureSet
     private var nextGLPictureSet: GLPictureSet
     private lateinit var colorOverlay: GLColorOverlay
 
-    private var queuedNextImageLoader: ImageLoader? = null
+    private var queuedNextPictureSet: PreparedPictureSet? = null
 
     private var surfaceCreated: Boolean = false
 
@@ -122,6 +153,21 @@ class MuzeiBlurRenderer(
     init {
         val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
         blurKeyframes = if (activityManager.isLowRamDevice) 1 else 2
+        // Low RAM devices can't afford to keep extra bitmaps around
+        renditionCache = if (activityManager.isLowRamDevice) {
+            null
+        } else {
+            object : LruCache<RenditionKey, PreparedPictureSet>(RENDITION_CACHE_SIZE) {
+                override fun entryRemoved(
+                        evicted: Boolean,
+                        key: RenditionKey,
+                        oldValue: PreparedPictureSet,
+                        newValue: PreparedPictureSet?
+                ) {
+                    oldValue.release()
+                }
+            }
+        }
         blurAnimator.currentValue = blurKeyframes.toFloat()
 
         currentGLPictureSet = GLPictureSet(0)
@@ -146,11 +192,11 @@ class MuzeiBlurRenderer(
         val maxBlurRadiusOverScreenHeight = blurAmount * 0.0001f
         val dm = context.resources.displayMetrics
         val maxBlurPx = (dm.heightPixels * maxBlurRadiusOverScreenHeight).toInt()
-        blurredSampleSize = 4
+        var blurredSampleSize = 4
         while (maxBlurPx / blurredSampleSize > ImageBlurrer.MAX_SUPPORTED_BLUR_PIXELS) {
             blurredSampleSize = blurredSampleSize shl 1
         }
-        maxPrescaledBlurPixels = maxBlurPx / blurredSampleSize
+        blurSizing = BlurSizing(maxBlurPx / blurredSampleSize, blurredSampleSize)
     }
 
     fun recomputeMaxDimAmount(
@@ -192,10 +238,10 @@ class MuzeiBlurRenderer(
         colorOverlay = GLColorOverlay()
 
         surfaceCreated = true
-        val loader = queuedNextImageLoader
-        if (loader != null) {
-            queuedNextImageLoader = null
-            setAndConsumeImageLoader(loader)
+        val pictureSet = queuedNextPictureSet
+        if (pictureSet != null) {
+            queuedNextPictureSet = null
+            setAndConsumePictureSet(pictureSet)
         }
     }
 
@@ -217,6 +263,30 @@ class MuzeiBlurRenderer(
         aspectRatio = width * 1f / height
     }
 
+    private fun currentRenditionKey(artworkId: Long?): RenditionKey {
+        val blurSizing = blurSizing
+        return RenditionKey(artworkId,
+                blurSizing.maxPrescaledBlurPixels,
+                blurSizing.blurredSampleSize,
+                maxGrey,
+                maxDim,
+                currentHeight.takeIf { it != 0 }
+                        ?: context.resources.displayMetrics.heightPixels)
+    }
+
+    /**
+     * Whether the [pictureSet] was prepared for the current surface size and blur. As
+     * the surface can change while a set is being prepared off the GL thread, this
+     * must be checked on the GL thread before passing the set to [setAndConsumePictureSet].
+     */
+    fun isPreparedForCurrentSurface(pictureSet: PreparedPictureSet): Boolean {
+        val preparedKey = pictureSet.renditionKey
+        val currentKey = currentRenditionKey(preparedKey.artworkId)
+        return preparedKey.height == currentKey.height &&
+                preparedKey.maxPrescaledBlurPixels == currentKey.maxPrescaledBlurPixels &&
+                preparedKey.blurredSampleSize == currentKey.blurredSampleSize
+    }
+
     override fun onDrawFrame(unused: GL10) {
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT)
 
@@ -264,23 +334,169 @@ class MuzeiBlurRenderer(
         }
     }
 
-    private fun blurRadiusAtFrame(f: Float): Float {
+    private fun blurRadiusAtFrame(maxPrescaledBlurPixels: Int, f: Float): Float {
         return maxPrescaledBlurPixels * blurInterpolator.getInterpolation(f / blurKeyframes)
     }
 
-    fun setAndConsumeImageLoader(imageLoader: ImageLoader, immediate: Boolean = false) {
-        if (!surfaceCreated) {
-            queuedNextImageLoader = imageLoader
-            return
+    /**
+     * Decode, scale, and blur the image from [imageLoader] into a [PreparedPictureSet],
+     * doing all of the CPU intensive work on the calling background thread so that the GL
+     * thread can continue to render frames. The returned set should be passed to
+     * [setAndConsumePictureSet] on the GL thread or otherwise released.
+     *
+     * If an [artworkId] is given, the prepared keyframes are cached so that switching
+     * back and forth between effects (i.e., between the home screen and lock screen)
+     * for the same artwork does not need to decode and blur the image again.
+     *
+     * If the calling coroutine is cancelled (i.e., because a newer artwork has arrived),
+     * any bitmaps created so far are recycled and preparation stops at the next stage.
+     */
+    suspend fun preparePictureSet(
+            imageLoader: ImageLoader,
+            artworkId: Long? = null
+    ): PreparedPictureSet? {
+        // Snapshot the current effects so they are consistent for every keyframe
+        val renditionKey = currentRenditionKey(artworkId)
+        val maxPrescaledBlurPixels = renditionKey.maxPrescaledBlurPixels
+        val blurredSampleSize = renditionKey.blurredSampleSize
+        val maxDim = renditionKey.maxDim
+        val maxGrey = renditionKey.maxGrey
+        val currentHeight = renditionKey.height
+        if (renditionCache != null && artworkId != null) {
+            synchronized(renditionCache) {
+                renditionCache.get(renditionKey)?.acquire()
+            }?.let { cachedPictureSet ->
+                return cachedPictureSet
+            }
         }
 
-        if (crossfadeAnimator.isRunning && !immediate) {
-            queuedNextImageLoader = imageLoader
-            return
+        // Open the image once and reuse that same session for every decode
+        val session = imageLoader.openSession() ?: return null
+        val width = session.width
+        val height = session.height
+        if (width == 0 || height == 0) {
+            session.close()
+            return null
         }
+        val bitmapAspectRatio = width * 1f / height
+        val bitmaps = arrayOfNulls<Bitmap>(blurKeyframes + 1)
+        try {
+            // Calculate image darkness to determine dim amount
+            var tempBitmap = session.decode(64)
+            val darkness = tempBitmap.darkness()
+            val dimAmount = if (demoMode)
+                DEMO_DIM
+            else
+                (maxDim * (1 - DIM_RANGE + DIM_RANGE * sqrt(darkness.toDouble()))).toInt()
+            tempBitmap?.recycle()
+            coroutineContext.ensureActive()
+
+            // Decode the unblurred image
+            var success = false
+            var sampleSize = 1
+            do {
+                val attemptedWidth = (bitmapAspectRatio * currentHeight / sampleSize).toInt()
+                val attemptedHeight = currentHeight / sampleSize
+                try {
+                    bitmaps[0] = session.decode(
+                            attemptedWidth,
+                            attemptedHeight)
+                    success = true
+                } catch (e: OutOfMemoryError) {
+                    sampleSize = sampleSize shl 1
+                    Log.d(TAG, "Decoding image at ${attemptedWidth}x$attemptedHeight " +
+                            "was too large, trying a sample size of $sampleSize")
+                }
+            } while (!success)
+            coroutineContext.ensureActive()
 
-        val (width, height) = imageLoader.getSize()
-        if (width == 0 || height == 0) {
+            if (maxPrescaledBlurPixels == 0 && maxGrey == 0) {
+                for (f in 1..blurKeyframes) {
+                    bitmaps[f] = bitmaps[0]
+                }
+            } else {
+                val sampleSizeTargetHeight: Int = if (maxPrescaledBlurPixels > 0) {
+                    currentHeight / blurredSampleSize
+                } else {
+                    currentHeight
+                }
+                // Note that image width should be a multiple of 4 to avoid
+                // issues with RenderScript allocations.
+                val scaledHeight = max(2, sampleSizeTargetHeight.floorEven())
+                val scaledWidth = max(4, (scaledHeight * bitmapAspectRatio).toInt().roundMult4())
+
+                // To blur, first load the entire bitmap region, but at a very large
+                // sample size that's appropriate for the final blurred image
+                tempBitmap = session.decode(scaledWidth, scaledHeight)
+
+                if (tempBitmap != null
+                        && tempBitmap.width != 0 && tempBitmap.height != 0) {
+                    // Next, create a scaled down version of the bitmap so that the blur radius
+                    // looks appropriate (tempBitmap will likely be bigger than the final
+                    // blurred bitmap, and thus the blur may look smaller if we just used
+                    // tempBitmap as the final blurred bitmap).
+
+                    // Note that image width should be a multiple of 4 to avoid
+                    // issues with RenderScript allocations.
+                    val scaledBitmap = Bitmap.createScaledBitmap(
+                            tempBitmap, scaledWidth, scaledHeight, true)
+                    if (tempBitmap != scaledBitmap) {
+                        tempBitmap.recycle()
+                    }
+
+                    // And finally, create a blurred copy for each keyframe.
+                    val blurrer = ImageBlurrer(context, scaledBitmap)
+                    try {
+                        for (f in 1..blurKeyframes) {
+                            coroutineContext.ensureActive()
+                            val desaturateAmount = maxGrey / 500f * f / blurKeyframes
+                            val blurRadius = if (maxPrescaledBlurPixels > 0) {
+                                blurRadiusAtFrame(maxPrescaledBlurPixels, f.toFloat())
+                            } else {
+                                0f
+                            }
+                            bitmaps[f] = blurrer.blurBitmap(blurRadius, desaturateAmount)
+                        }
+                    } finally {
+                        blurrer.destroy()
+                        scaledBitmap.recycle()
+                    }
+                } else {
+                    Log.e(TAG, "Failed to decode $session")
+                }
+            }
+            return PreparedPictureSet(renditionKey, width, height, dimAmount,
+                    bitmaps).also { pictureSet ->
+                if (renditionCache != null && artworkId != null && bitmaps[0] != null) {
+                    synchronized(renditionCache) {
+                        // Only keep renditions of the most recent artwork
+                        renditionCache.snapshot().keys.filter { key ->
+                            key.artworkId != artworkId
+                        }.forEach { key ->
+                            renditionCache.remove(key)
+                        }
+                        renditionCache.put(renditionKey, pictureSet.acquire())
+                    }
+                }
+            }
+        } catch (e: CancellationException) {
+            bitmaps.forEach { it?.recycle() }
+            throw e
+        } finally {
+            session.close()
+        }
+    }
+
+    /**
+     * Upload a [PreparedPictureSet] created by [preparePictureSet] and crossfade to it.
+     * This must be called on the GL thread. Ownership of the [pictureSet] passes to
+     * the renderer, which releases it once its bitmaps have been uploaded.
+     */
+    fun setAndConsumePictureSet(pictureSet: PreparedPictureSet, immediate: Boolean = false) {
+        if (!surfaceCreated || (crossfadeAnimator.isRunning && !immediate)) {
+            // Only the most recent artwork matters, so drop any previously queued set
+            queuedNextPictureSet?.release()
+            queuedNextPictureSet = pictureSet
             return
         }
 
@@ -291,13 +507,14 @@ class MuzeiBlurRenderer(
 
         if (!demoMode && !preview) {
             SwitchingPhotosStateFlow.value = SwitchingPhotosInProgress(nextGLPictureSet.id)
-            ArtworkSizeStateFlow.value = ArtworkSize(width, height)
+            ArtworkSizeStateFlow.value = ArtworkSize(pictureSet.width, pictureSet.height)
             ArtDetailViewport.setDefaultViewport(nextGLPictureSet.id,
-                    width * 1f / height,
+                    pictureSet.width * 1f / pictureSet.height,
                     aspectRatio)
         }
 
-        nextGLPictureSet.load(imageLoader)
+        nextGLPictureSet.load(pictureSet)
+        pictureSet.release()
 
         crossfadeAnimator.start(if (immediate) 1 else 0, 1) {
             // swap current and next picturesets
@@ -310,15 +527,48 @@ class MuzeiBlurRenderer(
                 SwitchingPhotosStateFlow.value = SwitchingPhotosDone(currentGLPictureSet.id)
             }
             System.gc()
-            val loader = queuedNextImageLoader
-            if (loader != null) {
-                queuedNextImageLoader = null
-                setAndConsumeImageLoader(loader, immediate)
+            val queuedPictureSet = queuedNextPictureSet
+            if (queuedPictureSet != null) {
+                queuedNextPictureSet = null
+                setAndConsumePictureSet(queuedPictureSet, immediate)
             }
         }
         callbacks.requestRender()
     }
 
+    /**
+     * The fully decoded, scaled, and blurred bitmaps for each blur keyframe of an
+     * artwork, ready to be uploaded as textures on the GL thread.
+     *
+     * As a set can be shared between the renderer and its rendition cache, it is
+     * reference counted: each holder must call [release] exactly once, with the
+     * bitmaps being recycled when the last reference is released.
+     */
+    class PreparedPictureSet internal constructor(
+            internal val renditionKey: RenditionKey,
+            internal val width: Int,
+            internal val height: Int,
+            internal val dimAmount: Int,
+            internal val bitmaps: Array<Bitmap?>
+    ) {
+        private var references = 1
+
+        internal fun acquire() = apply {
+            synchronized(this) {
+                references++
+            }
+        }
+
+        fun release() {
+            synchronized(this) {
+                if (--references > 0) {
+                    return
+                }
+            }
+            bitmaps.forEach { it?.recycle() }
+        }
+    }
+
     private inner class GLPictureSet(val id: Int) {
         private val projectionMatrix = FloatArray(16)
         private val mvpMatrix = FloatArray(16)
@@ -327,101 +577,25 @@ class MuzeiBlurRenderer(
         private var bitmapAspectRatio = 1f
         var dimAmount = 0
 
-        fun load(imageLoader: ImageLoader) {
-            val (width, height) = imageLoader.getSize()
-            hasBitmap = width != 0 && height != 0
+        fun load(pictureSet: PreparedPictureSet) {
+            hasBitmap = pictureSet.width != 0 && pictureSet.height != 0
             bitmapAspectRatio = if (hasBitmap)
-                width * 1f / height
+                pictureSet.width * 1f / pictureSet.height
             else
                 1f
 
-            dimAmount = DEFAULT_MAX_DIM
+            dimAmount = pictureSet.dimAmount
 
             destroyPictures()
 
             if (hasBitmap) {
-                // Calculate image darkness to determine dim amount
-                var tempBitmap = imageLoader.decode(64)
-                val darkness = tempBitmap.darkness()
-                dimAmount = if (demoMode)
-                    DEMO_DIM
-                else
-                    (maxDim * (1 - DIM_RANGE + DIM_RANGE * sqrt(darkness.toDouble()))).toInt()
-                tempBitmap?.recycle()
-
-                // Create the GLPicture objects
-                var success = false
-                var sampleSize = 1
-                do {
-                    val attemptedWidth = (bitmapAspectRatio * currentHeight / sampleSize).toInt()
-                    val attemptedHeight = currentHeight / sampleSize
-                    try {
-                        val image = imageLoader.decode(
-                                attemptedWidth,
-                                attemptedHeight)
-                        pictures[0] = image?.toGLPicture()
-                        success = true
-                    } catch (e: OutOfMemoryError) {
-                        sampleSize = sampleSize shl 1
-                        Log.d(TAG, "Decoding image at ${attemptedWidth}x$attemptedHeight " +
-                                "was too large, trying a sample size of $sampleSize")
-                    }
-                } while (!success)
-                if (maxPrescaledBlurPixels == 0 && maxGrey == 0) {
-                    for (f in 1..blurKeyframes) {
-                        pictures[f] = pictures[0]
-                    }
-                } else {
-                    val sampleSizeTargetHeight: Int = if (maxPrescaledBlurPixels > 0) {
-                        currentHeight / blurredSampleSize
+                val bitmaps = pictureSet.bitmaps
+                for (f in 0..blurKeyframes) {
+                    // Keyframes without any effects share the unblurred bitmap
+                    pictures[f] = if (f > 0 && bitmaps[f] === bitmaps[0]) {
+                        pictures[0]
                     } else {
-                        currentHeight
-                    }
-                    // Note that image width should be a multiple of 4 to avoid
-                    // issues with RenderScript allocations.
-                    val scaledHeight = max(2, sampleSizeTargetHeight.floorEven())
-                    val scaledWidth = max(4, (scaledHeight * bitmapAspectRatio).toInt().roundMult4())
-
-                    // To blur, first load the entire bitmap region, but at a very large
-                    // sample size that's appropriate for the final blurred image
-                    tempBitmap = imageLoader.decode(scaledWidth, scaledHeight)
-
-                    if (tempBitmap != null
-                            && tempBitmap.width != 0 && tempBitmap.height != 0) {
-                        // Next, create a scaled down version of the bitmap so that the blur radius
-                        // looks appropriate (tempBitmap will likely be bigger than the final
-                        // blurred bitmap, and thus the blur may look smaller if we just used
-                        // tempBitmap as the final blurred bitmap).
-
-                        // Note that image width should be a multiple of 4 to avoid
-                        // issues with RenderScript allocations.
-                        val scaledBitmap = Bitmap.createScaledBitmap(
-                                tempBitmap, scaledWidth, scaledHeight, true)
-                        if (tempBitmap != scaledBitmap) {
-                            tempBitmap.recycle()
-                        }
-
-                        // And finally, create a blurred copy for each keyframe.
-                        val blurrer = ImageBlurrer(context, scaledBitmap)
-                        for (f in 1..blurKeyframes) {
-                            val desaturateAmount = maxGrey / 500f * f / blurKeyframes
-                            val blurRadius = if (maxPrescaledBlurPixels > 0) {
-                                blurRadiusAtFrame(f.toFloat())
-                            } else {
-                                0f
-                            }
-                            val blurredBitmap = blurrer.blurBitmap(blurRadius, desaturateAmount)
-                            pictures[f] = blurredBitmap?.toGLPicture()
-                            blurredBitmap?.recycle()
-                        }
-                        blurrer.destroy()
-
-                        scaledBitmap.recycle()
-                    } else {
-                        Log.e(TAG, "ImageLoader failed to decode the image")
-                        for (f in 1..blurKeyframes) {
-                            pictures[f] = null
-                        }
+                        bitmaps[f]?.toGLPicture()
                     }
                 }
             }
@@ -565,6 +739,13 @@ class MuzeiBlurRenderer(
     }
 
     fun destroy() {
+        queuedNextPictureSet?.release()
+        queuedNextPictureSet = null
+        renditionCache?.let { cache ->
+            synchronized(cache) {
+                cache.evictAll()
+            }
+        }
         currentGLPictureSet.destroyPictures()
         nextGLPictureSet.destroyPictures()
     }
@@ -19,7 +19,7 @@ package com.google.android.apps.muzei.render
 import android.content.Context
 import androidx.lifecycle.LifecycleOwner
 import com.google.android.apps.muzei.api.MuzeiContract
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import kotlinx.coroutines.flow.filterNotNull
 import kotlinx.coroutines.flow.onEach
@@ -36,11 +36,14 @@ class RealRenderController(
      */
     private var currentArtworkUri = MuzeiContract.Artwork.CONTENT_URI
 
+    override var currentArtworkId: Long? = null
+
     override fun onCreate(owner: LifecycleOwner) {
         super.onCreate(owner)
-        val database = MuzeiDatabase.getInstance(context)
-        database.artworkDao().currentArtwork.filterNotNull().onEach { artwork ->
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+        currentArtworkRepository.currentArtwork.filterNotNull().onEach { artwork ->
             currentArtworkUri = artwork.contentUri
+            currentArtworkId = artwork.id
             reloadCurrentArtwork()
         }.launchWhenStartedIn(owner)
         reloadCurrentArtwork()
@@ -26,7 +26,9 @@ import androidx.lifecycle.lifecycleScope
 import com.google.android.apps.muzei.settings.Prefs
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 sealed class ReloadType
 object ReloadWhenVisible : ReloadType()
@@ -43,12 +45,10 @@ abstract class RenderController(
         set(value) {
             field = value
             if (value) {
-                callbacks.queueEventOnGlThread {
-                    val loader = queuedImageLoader
-                    if (loader != null) {
-                        queuedImageLoader = null
-                        renderer.setAndConsumeImageLoader(loader)
-                    }
+                val loader = queuedImageLoader
+                if (loader != null) {
+                    queuedImageLoader = null
+                    preparePictureSet(loader, queuedArtworkId, false)
                 }
                 callbacks.requestRender()
             }
@@ -70,6 +70,8 @@ abstract class RenderController(
     private lateinit var coroutineScope: CoroutineScope
     private var destroyed = false
     private var queuedImageLoader: ImageLoader? = null
+    private var queuedArtworkId: Long? = null
+    private var preparePictureSetJob: Job? = null
     private val sharedPreferenceChangeListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
         if (onLockScreen) {
             when (key) {
@@ -119,6 +121,7 @@ abstract class RenderController(
 
     override fun onDestroy(owner: LifecycleOwner) {
         queuedImageLoader = null
+        preparePictureSetJob?.cancel()
         Prefs.getSharedPreferences(context)
                 .unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener)
         destroyed = true
@@ -131,6 +134,12 @@ abstract class RenderController(
 
     protected abstract suspend fun openDownloadedCurrentArtwork(): ImageLoader
 
+    /**
+     * The id of the artwork returned by [openDownloadedCurrentArtwork], used to cache
+     * the rendered artwork. Null if the current artwork should not be cached.
+     */
+    protected open val currentArtworkId: Long? = null
+
     fun reloadCurrentArtwork(reloadType: ReloadType = ReloadWhenVisible) {
         if (destroyed) {
             // Don't reload artwork for destroyed RenderControllers
@@ -138,13 +147,52 @@ abstract class RenderController(
         }
         coroutineScope.launch(Dispatchers.Main) {
             val imageLoader = openDownloadedCurrentArtwork()
+            val artworkId = currentArtworkId
+
+            if (visible || reloadType != ReloadWhenVisible) {
+                preparePictureSet(imageLoader, artworkId,
+                        reloadType == ReloadImmediate || !visible)
+            } else {
+                queuedImageLoader = imageLoader
+                queuedArtworkId = artworkId
+            }
+        }
+    }
 
-            callbacks.queueEventOnGlThread {
-                if (visible || reloadType != ReloadWhenVisible) {
-                    renderer.setAndConsumeImageLoader(imageLoader,
-                    reloadType == ReloadImmediate || !visible)
-                } else {
-                    queuedImageLoader = imageLoader
+    /**
+     * Prepare the bitmaps for the [imageLoader] in the background, only handing them
+     * to the GL thread once they are ready to upload. Any preparation still running
+     * for a previous artwork is cancelled as it would be immediately replaced anyway,
+     * releasing its bitmaps if they were prepared but not yet handed to the GL thread.
+     */
+    private fun preparePictureSet(
+            imageLoader: ImageLoader,
+            artworkId: Long?,
+            immediate: Boolean
+    ) {
+        preparePictureSetJob?.cancel()
+        preparePictureSetJob = coroutineScope.launch(Dispatchers.Default) {
+            val pictureSet = renderer.preparePictureSet(imageLoader, artworkId)
+                    ?: return@launch
+            var consumed = false
+            try {
+                withContext(Dispatchers.Main) {
+                    callbacks.queueEventOnGlThread {
+                        if (renderer.isPreparedForCurrentSurface(pictureSet)) {
+                            renderer.setAndConsumePictureSet(pictureSet, immediate)
+                        } else {
+                            // The surface changed while the set was being prepared,
+                            // so prepare it again rather than show it at the wrong size
+                            pictureSet.release()
+                            reloadCurrentArtwork(
+                                    if (immediate) ReloadImmediate else ReloadWhenVisible)
+                        }
+                    }
+                    consumed = true
+                }
+            } finally {
+                if (!consumed) {
+                    pictureSet.release()
                 }
             }
         }
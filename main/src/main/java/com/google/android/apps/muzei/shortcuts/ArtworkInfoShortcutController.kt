@@ -26,7 +26,7 @@ import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.LifecycleOwner
 import com.google.android.apps.muzei.ArtworkInfoRedirectActivity
 import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import kotlinx.coroutines.flow.onEach
 import net.nurik.roman.muzei.R
@@ -44,8 +44,8 @@ class ArtworkInfoShortcutController(
     }
 
     override fun onCreate(owner: LifecycleOwner) {
-        val database = MuzeiDatabase.getInstance(context)
-        database.artworkDao().currentArtwork.onEach { artwork ->
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+        currentArtworkRepository.currentArtwork.onEach { artwork ->
             updateShortcut(artwork)
         }.launchWhenStartedIn(owner)
     }
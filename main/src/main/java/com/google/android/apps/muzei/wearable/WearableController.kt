@@ -21,9 +21,9 @@ import android.graphics.Bitmap
 import android.util.Log
 import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.LifecycleOwner
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.render.RenditionStore
 import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import com.google.android.gms.common.ConnectionResult
 import com.google.android.gms.common.GoogleApiAvailability
@@ -49,8 +49,8 @@ class WearableController(private val context: Context) : DefaultLifecycleObserve
 
     override fun onCreate(owner: LifecycleOwner) {
         // Update Android Wear whenever the artwork changes
-        val database = MuzeiDatabase.getInstance(context)
-        database.artworkDao().currentArtwork.filterNotNull().onEach { artwork ->
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+        currentArtworkRepository.currentArtwork.filterNotNull().onEach { artwork ->
             updateArtwork(artwork)
         }.launchWhenStartedIn(owner)
     }
@@ -73,9 +73,8 @@ class WearableController(private val context: Context) : DefaultLifecycleObserve
             return@withContext
         }
 
-        val image: Bitmap = ImageLoader.decode(
-                context.contentResolver, artwork.contentUri,
-                320) ?: return@withContext
+        val image: Bitmap = RenditionStore.getInstance(context).decode(
+                artwork.id, 320) ?: return@withContext
 
         val byteStream = ByteArrayOutputStream()
         image.compress(Bitmap.CompressFormat.PNG, 100, byteStream)
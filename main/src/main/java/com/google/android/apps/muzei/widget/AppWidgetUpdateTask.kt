@@ -31,7 +31,7 @@ import androidx.annotation.LayoutRes
 import androidx.annotation.RequiresApi
 import androidx.core.os.bundleOf
 import com.google.android.apps.muzei.legacy.allowsNextArtwork
-import com.google.android.apps.muzei.render.ImageLoader
+import com.google.android.apps.muzei.render.RenditionStore
 import com.google.android.apps.muzei.room.Artwork
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.room.Provider
@@ -134,7 +134,6 @@ private suspend fun createRemoteViews(
         widgetHeight: Int
 ): RemoteViews? {
     val contentDescription = artwork.title ?: artwork.byline ?: ""
-    val imageUri = artwork.contentUri
     val supportsNextArtwork = WallpaperActiveState.value &&
             provider.allowsNextArtwork(context)
 
@@ -149,9 +148,8 @@ private suspend fun createRemoteViews(
             0, nextArtworkIntent, PendingIntent.FLAG_UPDATE_CURRENT)
     val smallWidgetHeight = context.resources.getDimensionPixelSize(
             R.dimen.widget_small_height_breakpoint)
-    val image = ImageLoader.decode(
-            context.contentResolver, imageUri,
-            widgetWidth / 2, widgetHeight / 2) ?: return null
+    val image = RenditionStore.getInstance(context).decode(
+            artwork.id, widgetWidth / 2, widgetHeight / 2) ?: return null
 
     // Even after using sample size to scale an image down, it might be larger than the
     // maximum bitmap memory usage for widgets
@@ -19,6 +19,7 @@ package com.google.android.apps.muzei.widget
 import android.content.Context
 import androidx.lifecycle.DefaultLifecycleObserver
 import androidx.lifecycle.LifecycleOwner
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.room.MuzeiDatabase
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import com.google.android.apps.muzei.wallpaper.WallpaperActiveState
@@ -34,7 +35,8 @@ class WidgetUpdater(private val context: Context) : DefaultLifecycleObserver {
     override fun onCreate(owner: LifecycleOwner) {
         // Set up a ContentObserver to update widgets whenever the artwork changes
         val database = MuzeiDatabase.getInstance(context)
-        database.artworkDao().currentArtwork.onEach {
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(context)
+        currentArtworkRepository.currentArtwork.onEach {
             updateAppWidget()
         }.launchWhenStartedIn(owner)
         database.providerDao().currentProvider.onEach {
@@ -33,6 +33,7 @@ import com.google.android.apps.muzei.api.MuzeiContract.Artwork.ACTION_ARTWORK_CH
 import com.google.android.apps.muzei.api.MuzeiContract.Artwork.CONTENT_URI
 import com.google.android.apps.muzei.api.MuzeiContract.Artwork.getCurrentArtwork
 import com.google.android.apps.muzei.api.MuzeiContract.Artwork.getCurrentArtworkBitmap
+import com.google.android.apps.muzei.api.MuzeiContract.Artwork.getRenditionUri
 import com.google.android.apps.muzei.api.provider.ProviderClient
 import java.io.FileNotFoundException
 
@@ -81,6 +82,9 @@ public object MuzeiContract {
      * [Handling Bitmaps documentation](https://developer.android.com/topic/performance/graphics)
      * advice is highly suggested.
      *
+     * To retrieve an image closer to the size you need, open the URI returned by
+     * [getRenditionUri] instead, which returns a scaled down rendition of the artwork.
+     *
      * ### Listening for changes
      *
      * Just like any [ContentProvider], listening for changes can be done by implementing a
@@ -180,6 +184,20 @@ public object MuzeiContract {
         @get:JvmName("getContentUri")
         @RequiresPermission.Write(RequiresPermission(WRITE_PERMISSION))
         public val CONTENT_URI: Uri = Uri.parse("$SCHEME$AUTHORITY/$TABLE_NAME")
+        /**
+         * Query parameter for the minimum width, in pixels, of the image returned when
+         * opening an artwork URI.
+         *
+         * @see getRenditionUri
+         */
+        public const val QUERY_PARAMETER_WIDTH: String = "width"
+        /**
+         * Query parameter for the minimum height, in pixels, of the image returned when
+         * opening an artwork URI.
+         *
+         * @see getRenditionUri
+         */
+        public const val QUERY_PARAMETER_HEIGHT: String = "height"
         /**
          * Intent action that will be broadcast when the artwork is changed. This happens
          * immediately after the ContentProvider is updated with data and should be considered
@@ -210,6 +228,75 @@ public object MuzeiContract {
             }
         }
 
+        /**
+         * Returns a URI for a scaled down rendition of the artwork at [artworkUri] that is
+         * at least [width] x [height] pixels, suitable for
+         * [ContentResolver.openInputStream]. This allows small surfaces, such as watch faces
+         * and complications, to decode an image close to the size they need rather than
+         * the full size artwork.
+         *
+         * The returned image is a JPEG that keeps the aspect ratio of the artwork. When
+         * the artwork is not larger than the requested size (or when using a version of
+         * Muzei that does not support renditions), the full size artwork is returned
+         * instead, so you should still scale the decoded image to your exact size.
+         *
+         * @param artworkUri the artwork to retrieve, either [CONTENT_URI] for the current
+         * artwork or the URI for a specific artwork built with [ContentUris.withAppendedId].
+         * @param width the minimum width of the returned image in pixels.
+         * @param height the minimum height of the returned image in pixels.
+         *
+         * @return A URI which opens an appropriately sized rendition of the artwork.
+         */
+        @JvmStatic
+        @JvmOverloads
+        public fun getRenditionUri(
+                artworkUri: Uri = CONTENT_URI,
+                width: Int,
+                height: Int = width
+        ): Uri {
+            require(width > 0 && height > 0) {
+                "Width and height must be positive: ${width}x$height"
+            }
+            return artworkUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_WIDTH, width.toString())
+                    .appendQueryParameter(QUERY_PARAMETER_HEIGHT, height.toString())
+                    .build()
+        }
+
+        /**
+         * Gets a rendition of the current artwork image that is at least [width] x [height]
+         * pixels, falling back to the full size artwork image if the current version of
+         * Muzei does not support renditions.
+         *
+         * @param context the context to retrieve a ContentResolver.
+         * @param width the minimum width of the returned image in pixels.
+         * @param height the minimum height of the returned image in pixels.
+         *
+         * @return A Bitmap of the current artwork or null if the image could not be decoded.
+         *
+         * @throws FileNotFoundException If no cached artwork image was found.
+         *
+         * @see getRenditionUri
+         */
+        @JvmStatic
+        @JvmOverloads
+        @WorkerThread
+        @Throws(FileNotFoundException::class)
+        public fun getCurrentArtworkBitmap(
+                context: Context,
+                width: Int,
+                height: Int = width
+        ): Bitmap? {
+            check(Looper.myLooper() != Looper.getMainLooper()) {
+                "getCurrentArtworkBitmap cannot be called on the main thread"
+            }
+            val contentResolver = context.contentResolver
+            return contentResolver.openInputStream(getRenditionUri(CONTENT_URI, width, height))
+                    ?.use { input ->
+                        BitmapFactory.decodeStream(input)
+                    }
+        }
+
         /**
          * Naively gets the current artwork image without any subsampling or optimization for output size
          *
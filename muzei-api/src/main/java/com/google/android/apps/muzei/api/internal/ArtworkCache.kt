@@ -0,0 +1,220 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+import android.content.SharedPreferences
+import android.util.Log
+import java.io.File
+
+/**
+ * Tracks the artwork files cached in [directory] in least recently used order, allowing
+ * the cache to be kept within a budget by evicting the least recently used files.
+ *
+ * The directory is only scanned once, the first time the cache is used. Afterwards, the
+ * index is kept up to date as files are added, accessed, and removed, so that keeping
+ * the cache within its budget only touches the files being evicted.
+ *
+ * Hit, miss, and eviction counts are persisted in [preferences]. As hits are by far the
+ * most common operation, they are only recorded in memory: the counts and the access
+ * order of the files used (as their last modified time) are persisted together the next
+ * time a file is added to the cache or the cache is trimmed.
+ */
+public class ArtworkCache(
+        private val directory: File,
+        private val preferences: SharedPreferences
+) {
+
+    private companion object {
+        private const val TAG = "ArtworkCache"
+        private const val PREF_HITS = "cacheHits"
+        private const val PREF_MISSES = "cacheMisses"
+        private const val PREF_EVICTIONS = "cacheEvictions"
+    }
+
+    /**
+     * The size of each cached file by file name, in least recently used order
+     */
+    private var entries: LinkedHashMap<String, Long>? = null
+    private var totalBytes = 0L
+
+    /**
+     * The counts recorded since they were last persisted
+     */
+    private var pendingHits = 0L
+    private var pendingMisses = 0L
+    private var pendingEvictions = 0L
+
+    /**
+     * The names of the files used since the access order was last persisted
+     */
+    private val pendingAccesses = HashSet<String>()
+
+    /**
+     * The total size, in bytes, of all cached files
+     */
+    public val size: Long
+        get() = synchronized(this) {
+            ensureEntries()
+            totalBytes
+        }
+
+    /**
+     * The number of cached files
+     */
+    public val count: Int
+        get() = synchronized(this) {
+            ensureEntries().size
+        }
+
+    /**
+     * The number of times a cached file was used
+     */
+    public val hits: Long
+        get() = synchronized(this) {
+            preferences.getLong(PREF_HITS, 0L) + pendingHits
+        }
+
+    /**
+     * The number of times a file needed to be added to the cache
+     */
+    public val misses: Long
+        get() = synchronized(this) {
+            preferences.getLong(PREF_MISSES, 0L) + pendingMisses
+        }
+
+    /**
+     * The number of files removed to keep the cache within its budget
+     */
+    public val evictions: Long
+        get() = synchronized(this) {
+            preferences.getLong(PREF_EVICTIONS, 0L) + pendingEvictions
+        }
+
+    private fun ensureEntries(): LinkedHashMap<String, Long> = entries ?: run {
+        val newEntries = LinkedHashMap<String, Long>(16, 0.75f, true)
+        // Ignore partially downloaded files and their validators
+        directory.listFiles { file ->
+            file.isFile && !file.name.endsWith(".download") &&
+                    !file.name.endsWith(".download.validator")
+        }?.sortedBy { it.lastModified() }?.forEach { file ->
+            val length = file.length()
+            newEntries[file.name] = length
+            totalBytes += length
+        }
+        entries = newEntries
+        newEntries
+    }
+
+    /**
+     * Persist the counts and access order recorded since they were last persisted
+     */
+    private fun persist() {
+        if (pendingAccesses.isNotEmpty()) {
+            // Persist the access order for when the directory is next scanned,
+            // keeping the files used since the last persist in the order they were used
+            var lastModified = System.currentTimeMillis() - pendingAccesses.size
+            ensureEntries().keys.filter { name -> name in pendingAccesses }.forEach { name ->
+                File(directory, name).setLastModified(++lastModified)
+            }
+            pendingAccesses.clear()
+        }
+        if (pendingHits == 0L && pendingMisses == 0L && pendingEvictions == 0L) {
+            return
+        }
+        val editor = preferences.edit()
+        editor.putLong(PREF_HITS, preferences.getLong(PREF_HITS, 0L) + pendingHits)
+        editor.putLong(PREF_MISSES, preferences.getLong(PREF_MISSES, 0L) + pendingMisses)
+        editor.putLong(PREF_EVICTIONS,
+                preferences.getLong(PREF_EVICTIONS, 0L) + pendingEvictions)
+        editor.apply()
+        pendingHits = 0L
+        pendingMisses = 0L
+        pendingEvictions = 0L
+    }
+
+    private fun put(file: File) {
+        val length = file.length()
+        ensureEntries().put(file.name, length)?.let { oldLength ->
+            totalBytes -= oldLength
+        }
+        totalBytes += length
+    }
+
+    /**
+     * Record that the already cached [file] was used, marking it as the most recently
+     * used file. This is only recorded in memory until the next [recordMiss] or
+     * [trimToSize].
+     */
+    public fun recordHit(file: File): Unit = synchronized(this) {
+        pendingHits++
+        put(file)
+        pendingAccesses.add(file.name)
+    }
+
+    /**
+     * Record that the [file] was just added to the cache.
+     */
+    public fun recordMiss(file: File): Unit = synchronized(this) {
+        pendingMisses++
+        put(file)
+        // The newly written file is already the most recently modified
+        pendingAccesses.remove(file.name)
+        persist()
+    }
+
+    /**
+     * Delete the given [file], removing it from the cache if it was cached.
+     *
+     * @return Whether the file was deleted
+     */
+    public fun remove(file: File): Boolean = synchronized(this) {
+        if (file.parentFile == directory) {
+            entries?.remove(file.name)?.let { length ->
+                totalBytes -= length
+            }
+            pendingAccesses.remove(file.name)
+        }
+        file.delete()
+    }
+
+    /**
+     * Evict the least recently used files until the cache holds at most [maxBytes] bytes
+     * and [maxCount] files. Files with names in [pinnedNames] are never evicted.
+     */
+    public fun trimToSize(
+            maxBytes: Long,
+            maxCount: Int,
+            pinnedNames: Set<String>
+    ): Unit = synchronized(this) {
+        val entries = ensureEntries()
+        val iterator = entries.entries.iterator()
+        while ((totalBytes > maxBytes || entries.size > maxCount) && iterator.hasNext()) {
+            val (name, length) = iterator.next()
+            if (name in pinnedNames) {
+                continue
+            }
+            iterator.remove()
+            totalBytes -= length
+            pendingAccesses.remove(name)
+            val file = File(directory, name)
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Unable to evict $file")
+            }
+            pendingEvictions++
+        }
+        persist()
+    }
+}
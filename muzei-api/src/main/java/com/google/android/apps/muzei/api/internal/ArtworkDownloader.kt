@@ -0,0 +1,117 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.api.internal
+
+import okhttp3.CacheControl
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+
+/**
+ * Downloads artwork images over HTTP(S) with the given [client], supporting resuming
+ * an interrupted download from where it left off as long as the image hasn't changed.
+ *
+ * Images are already stored in each artwork's data file, so they are not also stored
+ * in the HTTP cache.
+ */
+internal class ArtworkDownloader(private val client: OkHttpClient) {
+
+    /**
+     * Open the image at the given [url] from the start.
+     */
+    @Throws(IOException::class)
+    fun open(url: String): InputStream {
+        val response = client.newCall(newRequest(url).build()).execute()
+        if (!response.isSuccessful) {
+            response.close()
+            throw IOException("HTTP error response ${response.code()}")
+        }
+        return response.body()?.byteStream()
+                ?: throw FileNotFoundException("Null input stream for URI: $url")
+    }
+
+    /**
+     * Open the image at the given [url] from the start, saving the response's ETag or
+     * Last-Modified date to [validatorFile] so that the download can later be resumed
+     * with [openFromOffset] if it is interrupted.
+     */
+    @Throws(IOException::class)
+    fun openResumable(url: String, validatorFile: File): InputStream {
+        val response = client.newCall(newRequest(url).build()).execute()
+        if (!response.isSuccessful) {
+            response.close()
+            throw IOException("HTTP error response ${response.code()}")
+        }
+        // If-Range only accepts strong ETags
+        val validator = response.header("ETag")?.takeUnless { it.startsWith("W/") }
+                ?: response.header("Last-Modified")
+        if (validator != null) {
+            validatorFile.writeText(validator)
+        } else {
+            validatorFile.delete()
+        }
+        return response.body()?.byteStream()
+                ?: throw FileNotFoundException("Null input stream for URI: $url")
+    }
+
+    /**
+     * Open the image at the given [url] starting at the given [offset] using an HTTP
+     * Range request conditional on the image still matching the validator saved in
+     * [validatorFile], returning null if the download cannot be resumed and must start
+     * from scratch.
+     */
+    @Throws(IOException::class)
+    fun openFromOffset(url: String, offset: Long, validatorFile: File): InputStream? {
+        // Without a validator, there's no way to know that the partial file
+        // is from the same version of the image the server would return
+        val validator = try {
+            validatorFile.readText()
+        } catch (e: IOException) {
+            return null
+        }
+        val request = newRequest(url)
+                .header("Range", "bytes=$offset-")
+                .header("If-Range", validator)
+                .build()
+        val response = client.newCall(request).execute()
+        if (response.code() != HttpURLConnection.HTTP_PARTIAL ||
+                response.header("Content-Range")?.getRangeStart() != offset) {
+            // The server doesn't support resuming or the image has changed, so start over
+            response.close()
+            return null
+        }
+        return response.body()?.byteStream()
+    }
+
+    /**
+     * Parse the first byte position of a Content-Range header of the form
+     * `bytes start-end/length`, returning null if it is not in that form.
+     */
+    private fun String.getRangeStart() = trim()
+            .removePrefix("bytes")
+            .trimStart()
+            .substringBefore('-', "")
+            .toLongOrNull()
+
+    private fun newRequest(url: String) = Request.Builder()
+            .url(url)
+            .cacheControl(CacheControl.Builder().noStore().build())
+}
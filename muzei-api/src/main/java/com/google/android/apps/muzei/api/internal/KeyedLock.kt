@@ -0,0 +1,60 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+/**
+ * A lock per key, allowing work for the same key (such as downloading the same file)
+ * to be done by one caller at a time while work for different keys runs in parallel.
+ * Callers waiting on a key's lock typically find the work already done once they
+ * acquire it.
+ *
+ * The lock for each key is only kept while at least one caller holds or is waiting
+ * on it.
+ */
+public class KeyedLock<K> {
+
+    private class Lock {
+        var waiters = 0
+    }
+
+    private val locks = HashMap<K, Lock>()
+
+    /**
+     * Run [block] while holding the lock for the given [key].
+     */
+    public inline fun <R> withLock(key: K, block: () -> R): R {
+        val lock = acquire(key)
+        try {
+            return synchronized(lock) {
+                block()
+            }
+        } finally {
+            release(key, lock)
+        }
+    }
+
+    @PublishedApi
+    internal fun acquire(key: K): Any = synchronized(locks) {
+        locks.getOrPut(key) { Lock() }.apply { waiters++ }
+    }
+
+    @PublishedApi
+    internal fun release(key: K, lock: Any): Unit = synchronized(locks) {
+        if (--(lock as Lock).waiters == 0) {
+            locks.remove(key)
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+import android.database.AbstractCursor
+import android.database.Cursor
+import kotlin.math.min
+
+/**
+ * A [Cursor] exposing the given [columnNames], where each value is lazily mapped from the
+ * current row of the underlying [cursor] via [mapColumn]. Unlike copying rows into a
+ * `MatrixCursor`, rows are only read as they are accessed, allowing the underlying
+ * cursor to load its rows a window at a time.
+ *
+ * Only the rows starting at [offset] are exposed, up to [limit] rows if it is not negative.
+ * Closing this cursor closes the underlying [cursor].
+ */
+public class MappedCursor(
+        private val cursor: Cursor,
+        private val columnNames: Array<String>,
+        private val offset: Int = 0,
+        private val limit: Int = -1,
+        private val mapColumn: Cursor.(columnName: String) -> Any?
+) : AbstractCursor() {
+
+    private val rowCount by lazy {
+        val availableRows = (cursor.count - offset).coerceAtLeast(0)
+        if (limit >= 0) min(limit, availableRows) else availableRows
+    }
+
+    /**
+     * The number of rows in the underlying cursor, ignoring the offset and limit
+     */
+    public val totalCount: Int
+        get() = cursor.count
+
+    override fun getCount(): Int = rowCount
+
+    override fun getColumnNames(): Array<String> = columnNames
+
+    override fun onMove(oldPosition: Int, newPosition: Int): Boolean =
+            cursor.moveToPosition(offset + newPosition)
+
+    private operator fun get(column: Int): Any? = cursor.mapColumn(columnNames[column])
+
+    override fun getString(column: Int): String? = get(column)?.toString()
+
+    override fun getShort(column: Int): Short = (get(column) as? Number)?.toShort() ?: 0
+
+    override fun getInt(column: Int): Int = (get(column) as? Number)?.toInt() ?: 0
+
+    override fun getLong(column: Int): Long = (get(column) as? Number)?.toLong() ?: 0L
+
+    override fun getFloat(column: Int): Float = (get(column) as? Number)?.toFloat() ?: 0f
+
+    override fun getDouble(column: Int): Double = (get(column) as? Number)?.toDouble() ?: 0.0
+
+    override fun getBlob(column: Int): ByteArray? = get(column) as? ByteArray
+
+    override fun isNull(column: Int): Boolean = get(column) == null
+
+    override fun getType(column: Int): Int = when (get(column)) {
+        null -> Cursor.FIELD_TYPE_NULL
+        is Float, is Double -> Cursor.FIELD_TYPE_FLOAT
+        is Number -> Cursor.FIELD_TYPE_INTEGER
+        is ByteArray -> Cursor.FIELD_TYPE_BLOB
+        else -> Cursor.FIELD_TYPE_STRING
+    }
+
+    override fun close() {
+        super.close()
+        cursor.close()
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+import android.content.SharedPreferences
+import android.graphics.Point
+
+private const val PREF_MAX_IMAGE_WIDTH = "maxImageWidth"
+private const val PREF_MAX_IMAGE_HEIGHT = "maxImageHeight"
+
+/**
+ * Save the given [size] into [SharedPreferences] for later retrieval via [getMaxImageSize].
+ */
+public fun SharedPreferences.Editor.putMaxImageSize(size: Point) {
+    putInt(PREF_MAX_IMAGE_WIDTH, size.x)
+    putInt(PREF_MAX_IMAGE_HEIGHT, size.y)
+}
+
+/**
+ * Gets the max image size out of a [SharedPreferences], returning null if none was saved.
+ */
+public fun SharedPreferences.getMaxImageSize(): Point? {
+    val width = getInt(PREF_MAX_IMAGE_WIDTH, 0)
+    val height = getInt(PREF_MAX_IMAGE_HEIGHT, 0)
+    return if (width > 0 && height > 0) Point(width, height) else null
+}
@@ -45,4 +45,20 @@ public object ProtocolConstants {
     public const val GET_ARTWORK_INFO_MIN_VERSION: Int = 320000
     public const val METHOD_GET_ARTWORK_INFO: String = PREFIX + "GET_ARTWORK_INFO"
     public const val KEY_GET_ARTWORK_INFO: String = PREFIX + "ARTWORK_INFO"
+    public const val METHOD_GET_RANDOM_ARTWORK_IDS: String = PREFIX + "GET_RANDOM_ARTWORK_IDS"
+    public const val KEY_EXCLUDED_ARTWORK_IDS: String = PREFIX + "EXCLUDED_ARTWORK_IDS"
+    public const val KEY_RANDOM_ARTWORK_LIMIT: String = PREFIX + "RANDOM_ARTWORK_LIMIT"
+    public const val KEY_RANDOM_ARTWORK_IDS: String = PREFIX + "RANDOM_ARTWORK_IDS"
+    public const val KEY_ARTWORK_COUNT: String = PREFIX + "ARTWORK_COUNT"
+    public const val METHOD_SET_MAX_IMAGE_SIZE: String = PREFIX + "SET_MAX_IMAGE_SIZE"
+    public const val KEY_MAX_IMAGE_WIDTH: String = PREFIX + "MAX_IMAGE_WIDTH"
+    public const val KEY_MAX_IMAGE_HEIGHT: String = PREFIX + "MAX_IMAGE_HEIGHT"
+    public const val METHOD_SET_PINNED_ARTWORK_IDS: String = PREFIX + "SET_PINNED_ARTWORK_IDS"
+    public const val KEY_PINNED_ARTWORK_IDS: String = PREFIX + "PINNED_ARTWORK_IDS"
+    public const val METHOD_GET_CACHE_STATS: String = PREFIX + "GET_CACHE_STATS"
+    public const val KEY_CACHE_SIZE: String = PREFIX + "CACHE_SIZE"
+    public const val KEY_CACHE_COUNT: String = PREFIX + "CACHE_COUNT"
+    public const val KEY_CACHE_HITS: String = PREFIX + "CACHE_HITS"
+    public const val KEY_CACHE_MISSES: String = PREFIX + "CACHE_MISSES"
+    public const val KEY_CACHE_EVICTIONS: String = PREFIX + "CACHE_EVICTIONS"
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+import java.util.Random
+
+/**
+ * Lazily generates a random permutation of the indices `0 until count` using a partial
+ * Fisher–Yates shuffle. Each index is returned at most once and only the swapped
+ * positions are stored, so taking the first `k` indices costs O(k) regardless of [count].
+ */
+public fun Random.shuffledIndices(count: Int): Sequence<Int> = sequence {
+    val swapped = HashMap<Int, Int>()
+    for (index in 0 until count) {
+        val swapIndex = index + nextInt(count - index)
+        val value = swapped[swapIndex] ?: swapIndex
+        swapped[swapIndex] = swapped.remove(index) ?: index
+        yield(value)
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.apps.muzei.api.internal
+
+import android.graphics.Bitmap
+import android.graphics.Point
+import android.os.Build
+import android.util.Log
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import kotlin.math.max
+
+/**
+ * A disk cache of thumbnails stored in [directory] as lossy WebP files, bounded to a
+ * total of [maxBytes] by evicting the least recently used thumbnails.
+ *
+ * Thumbnails are stored per size bucket so that small thumbnails are not reused for
+ * larger size hints (and vice versa). Each thumbnail is associated with a `version`
+ * (such as the last modified time of the image) and is regenerated whenever the
+ * version changes. Concurrent requests for the same thumbnail wait for a single
+ * thumbnail to be generated.
+ */
+public class ThumbnailCache(
+        private val directory: File,
+        private val maxBytes: Long
+) {
+
+    private companion object {
+        private const val TAG = "ThumbnailCache"
+        private val BUCKET_SIZES = intArrayOf(64, 128, 256, 512, 1024)
+        private const val QUALITY = 80
+    }
+
+    /**
+     * Held while generating each thumbnail file
+     */
+    private val generationLock = KeyedLock<String>()
+
+    /**
+     * Get the cached thumbnail file for the given [key] and [version] suitable for the
+     * given [sizeHint], using [generateThumbnail] to generate a thumbnail with the given
+     * maximum width and height if one is not already cached.
+     *
+     * @return The thumbnail file or null if the thumbnail could not be generated
+     */
+    public fun get(
+            key: String,
+            version: Long,
+            sizeHint: Point,
+            generateThumbnail: (targetWidth: Int, targetHeight: Int) -> Bitmap?
+    ): File? {
+        // Thumbnails have historically been generated at half the size hint
+        val targetSize = max(sizeHint.x, sizeHint.y) / 2
+        val bucketSize = BUCKET_SIZES.firstOrNull { it >= targetSize } ?: BUCKET_SIZES.last()
+        val fileName = "${key}_${version}_$bucketSize"
+        generationLock.withLock(fileName) {
+            val file = File(directory, fileName)
+            if (file.exists() && file.length() != 0L) {
+                // Mark the thumbnail as recently used
+                file.setLastModified(System.currentTimeMillis())
+                return file
+            }
+            if (!directory.exists() && !directory.mkdirs()) {
+                Log.w(TAG, "Unable to create thumbnail directory $directory")
+                return null
+            }
+            // Remove any thumbnails for older versions
+            directory.listFiles { _, name ->
+                name.startsWith("${key}_") && !name.startsWith("${key}_${version}_")
+            }?.forEach { it.delete() }
+            val bitmap = generateThumbnail(bucketSize, bucketSize) ?: return null
+            val partialFile = File(directory, "$fileName.tmp")
+            try {
+                FileOutputStream(partialFile).use { out ->
+                    bitmap.compress(if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                        Bitmap.CompressFormat.WEBP_LOSSY
+                    } else {
+                        @Suppress("DEPRECATION")
+                        Bitmap.CompressFormat.WEBP
+                    }, QUALITY, out)
+                }
+                if (!partialFile.renameTo(file)) {
+                    throw IOException("Unable to move $partialFile to $file")
+                }
+            } catch (e: IOException) {
+                Log.e(TAG, "Error writing thumbnail", e)
+                partialFile.delete()
+                return null
+            } finally {
+                bitmap.recycle()
+            }
+            trimToSize()
+            return file
+        }
+    }
+
+    /**
+     * Remove all thumbnails for the given [key], such as when the image is deleted.
+     */
+    public fun remove(key: String) {
+        directory.listFiles { _, name ->
+            name.startsWith("${key}_")
+        }?.forEach { it.delete() }
+    }
+
+    private fun trimToSize() {
+        // Ignore thumbnails that are still being written
+        val files = directory.listFiles { _, name -> !name.endsWith(".tmp") } ?: return
+        var totalBytes = files.sumOf { it.length() }
+        if (totalBytes <= maxBytes) {
+            return
+        }
+        for (file in files.sortedBy { it.lastModified() }) {
+            totalBytes -= file.length()
+            file.delete()
+            if (totalBytes <= maxBytes) {
+                break
+            }
+        }
+    }
+}
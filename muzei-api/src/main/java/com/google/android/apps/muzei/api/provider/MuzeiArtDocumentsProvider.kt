@@ -17,6 +17,7 @@
 package com.google.android.apps.muzei.api.provider
 
 import android.annotation.SuppressLint
+import android.content.ContentResolver
 import android.content.ContentUris
 import android.content.Context
 import android.content.pm.PackageManager
@@ -31,6 +32,7 @@ import android.graphics.Point
 import android.net.Uri
 import android.os.Binder
 import android.os.Build
+import android.os.Bundle
 import android.os.CancellationSignal
 import android.os.ParcelFileDescriptor
 import android.provider.DocumentsContract
@@ -38,10 +40,10 @@ import android.provider.DocumentsProvider
 import android.util.Log
 import androidx.annotation.RequiresApi
 import androidx.exifinterface.media.ExifInterface
+import com.google.android.apps.muzei.api.internal.MappedCursor
+import com.google.android.apps.muzei.api.internal.ThumbnailCache
 import java.io.File
 import java.io.FileNotFoundException
-import java.io.FileOutputStream
-import java.io.IOException
 import kotlin.math.max
 
 /**
@@ -128,9 +130,20 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
                 DocumentsContract.Document.COLUMN_FLAGS,
                 DocumentsContract.Document.COLUMN_SIZE,
                 DocumentsContract.Document.COLUMN_LAST_MODIFIED)
+        /**
+         * The artwork columns needed to build each document
+         */
+        private val ARTWORK_PROJECTION = arrayOf(
+                ProviderContract.Artwork._ID,
+                ProviderContract.Artwork.TITLE,
+                ProviderContract.Artwork.BYLINE,
+                ProviderContract.Artwork.DATE_MODIFIED)
+        private const val MAX_RECENT_DOCUMENTS = 64
+        private const val MAX_THUMBNAIL_CACHE_BYTES = 16L * 1024 * 1024
     }
 
     private lateinit var providerInfos: Map<String, ProviderInfo>
+    private val thumbnailCaches = HashMap<String, ThumbnailCache>()
 
     /**
      * @suppress
@@ -221,25 +234,13 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
             authority: String,
             projection: Array<String>?
     ): Cursor {
-        val result = MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
-        val context = context ?: return result
-        val contentUri = ProviderContract.getContentUri(authority)
-        val token = Binder.clearCallingIdentity()
-        try {
-            context.contentResolver.query(contentUri,
-                    null, null, null,
-                    "${ProviderContract.Artwork.DATE_MODIFIED} DESC",
-                    null
-            )?.use { data ->
-                while (data.moveToNext() && result.count < 64) {
-                    result.addArtwork(authority, Artwork.fromCursor(data))
-                }
-            }
-        } finally {
-            Binder.restoreCallingIdentity(token)
+        val result = queryArtworkDocuments(authority, projection,
+                sortOrder = "${ProviderContract.Artwork.DATE_MODIFIED} DESC",
+                limit = MAX_RECENT_DOCUMENTS)
+        context?.let { context ->
+            result.setNotificationUri(context.contentResolver,
+                    DocumentsContract.buildRecentDocumentsUri(authority, authority))
         }
-        result.setNotificationUri(context.contentResolver,
-                DocumentsContract.buildRecentDocumentsUri(authority, authority))
         return result
     }
 
@@ -252,24 +253,72 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
             projection: Array<String>?,
             sortOrder: String?
     ): Cursor {
-        val result = MatrixCursor(projection ?: DEFAULT_DOCUMENT_PROJECTION)
-        val context = context ?: return result
+        val result = queryArtworkDocuments(authority, projection)
+        context?.let { context ->
+            result.setNotificationUri(context.contentResolver,
+                    DocumentsContract.buildChildDocumentsUri(authority, authority))
+        }
+        return result
+    }
+
+    /**
+     * @suppress
+     */
+    @RequiresApi(Build.VERSION_CODES.O)
+    @Throws(FileNotFoundException::class)
+    final override fun queryChildDocuments(
+            authority: String,
+            projection: Array<String>?,
+            queryArgs: Bundle?
+    ): Cursor {
+        val offset = queryArgs?.getInt(ContentResolver.QUERY_ARG_OFFSET, 0) ?: 0
+        val limit = queryArgs?.getInt(ContentResolver.QUERY_ARG_LIMIT, -1) ?: -1
+        val result = queryArtworkDocuments(authority, projection,
+                offset = offset.coerceAtLeast(0), limit = limit)
+        if (result is MappedCursor) {
+            val honoredArgs = listOfNotNull(
+                    ContentResolver.QUERY_ARG_OFFSET.takeIf {
+                        queryArgs?.containsKey(it) == true
+                    },
+                    ContentResolver.QUERY_ARG_LIMIT.takeIf {
+                        queryArgs?.containsKey(it) == true
+                    })
+            result.extras = Bundle().apply {
+                putStringArray(ContentResolver.EXTRA_HONORED_ARGS, honoredArgs.toTypedArray())
+                putInt(ContentResolver.EXTRA_TOTAL_COUNT, result.totalCount)
+            }
+        }
+        context?.let { context ->
+            result.setNotificationUri(context.contentResolver,
+                    DocumentsContract.buildChildDocumentsUri(authority, authority))
+        }
+        return result
+    }
+
+    /**
+     * Query the artwork of the given [authority], lazily mapping each artwork row
+     * to a document row as it is read rather than copying every row up front.
+     */
+    private fun queryArtworkDocuments(
+            authority: String,
+            projection: Array<String>?,
+            sortOrder: String? = null,
+            offset: Int = 0,
+            limit: Int = -1
+    ): Cursor {
+        val documentProjection = projection ?: DEFAULT_DOCUMENT_PROJECTION
+        val context = context ?: return MatrixCursor(documentProjection)
         val contentUri = ProviderContract.getContentUri(authority)
         val token = Binder.clearCallingIdentity()
-        try {
+        val data = try {
             context.contentResolver.query(contentUri,
-                    null, null, null, null, null
-            )?.use { data ->
-                while (data.moveToNext()) {
-                    result.addArtwork(authority, Artwork.fromCursor(data))
-                }
-            }
+                    ARTWORK_PROJECTION, null, null, sortOrder)
         } finally {
             Binder.restoreCallingIdentity(token)
+        } ?: return MatrixCursor(documentProjection)
+        return MappedCursor(data, documentProjection, offset, limit) { columnName ->
+            getArtworkDocumentColumn(authority, columnName)
         }
-        result.setNotificationUri(context.contentResolver,
-            DocumentsContract.buildChildDocumentsUri(authority, authority))
-        return result
     }
 
     /**
@@ -287,10 +336,12 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
             val token = Binder.clearCallingIdentity()
             try {
                 context.contentResolver.query(uri,
-                        null, null, null, null
+                        ARTWORK_PROJECTION, null, null, null
                 )?.use { data ->
                     if (data.moveToFirst()) {
-                        result.addArtwork(authority, Artwork.fromCursor(data))
+                        result.addRow(result.columnNames.map { columnName ->
+                            data.getArtworkDocumentColumn(authority, columnName)
+                        })
                     }
                 }
             } finally {
@@ -315,16 +366,25 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
         return result
     }
 
-    private fun MatrixCursor.addArtwork(authority: String, artwork: Artwork) {
-        newRow().apply {
-            add(DocumentsContract.Document.COLUMN_DOCUMENT_ID, "$authority/${artwork.id}")
-            add(DocumentsContract.Document.COLUMN_DISPLAY_NAME, artwork.title)
-            add(DocumentsContract.Document.COLUMN_SUMMARY, artwork.byline)
-            add(DocumentsContract.Document.COLUMN_MIME_TYPE, "image/png")
-            add(DocumentsContract.Document.COLUMN_FLAGS, DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL)
-            add(DocumentsContract.Document.COLUMN_SIZE, null)
-            add(DocumentsContract.Document.COLUMN_LAST_MODIFIED, artwork.dateModified.time)
-        }
+    /**
+     * Get the value of the document column [columnName] for the current artwork row,
+     * which must contain the columns of [ARTWORK_PROJECTION].
+     */
+    private fun Cursor.getArtworkDocumentColumn(
+            authority: String,
+            columnName: String
+    ): Any? = when (columnName) {
+        DocumentsContract.Document.COLUMN_DOCUMENT_ID ->
+            "$authority/${getLong(getColumnIndexOrThrow(ProviderContract.Artwork._ID))}"
+        DocumentsContract.Document.COLUMN_DISPLAY_NAME ->
+            getString(getColumnIndexOrThrow(ProviderContract.Artwork.TITLE))
+        DocumentsContract.Document.COLUMN_SUMMARY ->
+            getString(getColumnIndexOrThrow(ProviderContract.Artwork.BYLINE))
+        DocumentsContract.Document.COLUMN_MIME_TYPE -> "image/png"
+        DocumentsContract.Document.COLUMN_FLAGS -> DocumentsContract.Document.FLAG_SUPPORTS_THUMBNAIL
+        DocumentsContract.Document.COLUMN_LAST_MODIFIED ->
+            getLong(getColumnIndexOrThrow(ProviderContract.Artwork.DATE_MODIFIED))
+        else -> null
     }
 
     /**
@@ -376,50 +436,40 @@ public open class MuzeiArtDocumentsProvider : DocumentsProvider() {
             signal: CancellationSignal?
     ): AssetFileDescriptor? {
         val (authority, id) = documentId.split("/")
-        val tempFile = getThumbnailFile(authority, id)
-        if (tempFile.exists() && tempFile.length() != 0L) {
-            // We already have a cached thumbnail
-            return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile,
-                    ParcelFileDescriptor.MODE_READ_ONLY), 0,
-                    AssetFileDescriptor.UNKNOWN_LENGTH)
-        }
-        // We need to generate a new thumbnail
         val contentUri = ProviderContract.getContentUri(authority)
         val uri = ContentUris.withAppendedId(contentUri, id.toLong())
+        val thumbnailCache = getThumbnailCache(authority)
         val token = Binder.clearCallingIdentity()
-        val bitmap = try {
-            decodeUri(uri,
-                    sizeHint.x / 2, sizeHint.y / 2
-            ) ?: run {
-                throw FileNotFoundException("Unable to generate thumbnail for $uri")
+        val thumbnailFile = try {
+            val dateModified = context?.contentResolver?.query(uri,
+                    arrayOf(ProviderContract.Artwork.DATE_MODIFIED), null, null, null
+            )?.use { data ->
+                if (data.moveToFirst()) data.getLong(0) else null
+            } ?: run {
+                // The artwork no longer exists, so remove any thumbnails for it
+                thumbnailCache.remove(id)
+                throw FileNotFoundException("Unable to find artwork for $uri")
             }
+            thumbnailCache.get(id, dateModified, sizeHint) { targetWidth, targetHeight ->
+                decodeUri(uri, targetWidth, targetHeight)
+            } ?: throw FileNotFoundException("Unable to generate thumbnail for $uri")
         } finally {
             Binder.restoreCallingIdentity(token)
         }
-
-        // Write out the thumbnail to a temporary file
-        try {
-            FileOutputStream(tempFile).use { out ->
-                bitmap.compress(Bitmap.CompressFormat.PNG, 90, out)
-            }
-        } catch (e: IOException) {
-            Log.e(TAG, "Error writing thumbnail", e)
-            return null
-        }
-
-        return AssetFileDescriptor(ParcelFileDescriptor.open(tempFile, ParcelFileDescriptor.MODE_READ_ONLY), 0,
+        return AssetFileDescriptor(ParcelFileDescriptor.open(thumbnailFile,
+                ParcelFileDescriptor.MODE_READ_ONLY), 0,
                 AssetFileDescriptor.UNKNOWN_LENGTH)
     }
 
     @Throws(FileNotFoundException::class)
-    private fun getThumbnailFile(authority: String, id: String): File {
+    private fun getThumbnailCache(authority: String): ThumbnailCache {
         val context = context ?: throw FileNotFoundException("Unable to create cache directory")
-        val authorityDirectory = File(context.cacheDir, "muzei_$authority")
-        val thumbnailDirectory = File(authorityDirectory, "thumbnails")
-        if (!thumbnailDirectory.exists() && !thumbnailDirectory.mkdirs()) {
-            throw FileNotFoundException("Unable to create thumbnail directory")
+        return synchronized(thumbnailCaches) {
+            thumbnailCaches.getOrPut(authority) {
+                val authorityDirectory = File(context.cacheDir, "muzei_$authority")
+                ThumbnailCache(File(authorityDirectory, "thumbnails"), MAX_THUMBNAIL_CACHE_BYTES)
+            }
         }
-        return File(thumbnailDirectory, id)
     }
 
     private fun decodeUri(uri: Uri, targetWidth: Int, targetHeight: Int): Bitmap? {
@@ -33,9 +33,12 @@ import android.content.OperationApplicationException
 import android.content.pm.PackageManager
 import android.content.pm.ProviderInfo
 import android.database.Cursor
+import android.database.DatabaseUtils
 import android.database.sqlite.SQLiteDatabase
 import android.database.sqlite.SQLiteOpenHelper
 import android.database.sqlite.SQLiteQueryBuilder
+import android.database.sqlite.SQLiteStatement
+import android.graphics.Point
 import android.net.Uri
 import android.os.Binder
 import android.os.Build
@@ -53,29 +56,50 @@ import androidx.versionedparcelable.ParcelUtils
 import com.google.android.apps.muzei.api.BuildConfig
 import com.google.android.apps.muzei.api.R
 import com.google.android.apps.muzei.api.UserCommand
+import com.google.android.apps.muzei.api.internal.ArtworkCache
+import com.google.android.apps.muzei.api.internal.ArtworkDownloader
+import com.google.android.apps.muzei.api.internal.KeyedLock
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.DEFAULT_VERSION
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.GET_COMMAND_ACTIONS_MIN_VERSION
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_ARTWORK_COUNT
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_CACHE_COUNT
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_CACHE_EVICTIONS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_CACHE_HITS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_CACHE_MISSES
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_CACHE_SIZE
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_COMMAND
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_COMMANDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_DESCRIPTION
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_EXCLUDED_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_GET_ARTWORK_INFO
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_LAST_LOADED_TIME
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_IMAGE_HEIGHT
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_IMAGE_WIDTH
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_MAX_LOADED_ARTWORK_ID
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_OPEN_ARTWORK_INFO_SUCCESS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_PINNED_ARTWORK_IDS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RANDOM_ARTWORK_IDS
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RANDOM_ARTWORK_LIMIT
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_RECENT_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.KEY_VERSION
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_ARTWORK_INFO
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_CACHE_STATS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_COMMANDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_DESCRIPTION
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_LOAD_INFO
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_RANDOM_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_GET_VERSION
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_MARK_ARTWORK_INVALID
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_MARK_ARTWORK_LOADED
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_OPEN_ARTWORK_INFO
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_REQUEST_LOAD
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_SET_MAX_IMAGE_SIZE
+import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_SET_PINNED_ARTWORK_IDS
 import com.google.android.apps.muzei.api.internal.ProtocolConstants.METHOD_TRIGGER_COMMAND
 import com.google.android.apps.muzei.api.internal.RemoteActionBroadcastReceiver
+import com.google.android.apps.muzei.api.internal.getMaxImageSize
 import com.google.android.apps.muzei.api.internal.getRecentIds
+import com.google.android.apps.muzei.api.internal.putMaxImageSize
 import com.google.android.apps.muzei.api.internal.putRecentIds
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider.Companion.ACCESS_PERMISSION
 import com.google.android.apps.muzei.api.provider.MuzeiArtProvider.Companion.ACTION_MUZEI_ART_PROVIDER
@@ -87,10 +111,10 @@ import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.IOException
 import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
+import java.util.ArrayDeque
 import java.util.ArrayList
 import java.util.HashSet
+import kotlin.random.Random
 
 /**
  * Base class for a Muzei Live Wallpaper artwork provider. Art providers are a way for other apps to
@@ -217,6 +241,12 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
     public companion object {
         private const val TAG = "MuzeiArtProvider"
         private const val MAX_RECENT_ARTWORK = 100
+        /**
+         * The most ids [METHOD_GET_RANDOM_ARTWORK_IDS] will return or exclude, keeping
+         * the number of bound arguments within SQLite's limit of 999
+         */
+        private const val MAX_RANDOM_ARTWORK_LIMIT = 100
+        private const val MAX_EXCLUDED_ARTWORK_IDS = 500
         /**
          * Permission that can be used with your [MuzeiArtProvider] to ensure that only your app
          * and Muzei can read and write its data.
@@ -242,8 +272,70 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         private const val PREF_MAX_LOADED_ARTWORK_ID = "maxLoadedArtworkId"
         private const val PREF_LAST_LOADED_TIME = "lastLoadTime"
         private const val PREF_RECENT_ARTWORK_IDS = "recentArtworkIds"
+        private const val PREF_PINNED_ARTWORK_IDS = "pinnedArtworkIds"
+        private const val DEFAULT_MAX_CACHE_BYTES = 100L * 1024 * 1024 // 100 MiB
 
         private const val TABLE_NAME = "artwork"
+        /**
+         * SQLite's default limit on the number of host parameters in a single statement
+         */
+        private const val MAX_SQL_VARIABLES = 999
+        /**
+         * The columns that are compared to determine whether an insert of artwork with an
+         * existing token actually changes the artwork
+         */
+        private val COMPARED_COLUMNS = listOf(
+                ProviderContract.Artwork.TITLE,
+                ProviderContract.Artwork.BYLINE,
+                ProviderContract.Artwork.ATTRIBUTION,
+                ProviderContract.Artwork.PERSISTENT_URI,
+                ProviderContract.Artwork.WEB_URI,
+                ProviderContract.Artwork.METADATA)
+    }
+
+    /**
+     * The [COMPARED_COLUMNS] of an existing artwork row with a given token
+     */
+    private class ExistingArtwork(
+            val id: Long,
+            private val values: Map<String, String?>
+    ) {
+        constructor(data: Cursor) : this(
+                data.getLong(data.getColumnIndex(BaseColumns._ID)),
+                COMPARED_COLUMNS.associateWith { column ->
+                    data.getString(data.getColumnIndex(column))
+                })
+
+        constructor(id: Long, values: ContentValues) : this(id,
+                COMPARED_COLUMNS.associateWith { column -> values.getAsString(column) })
+
+        fun hasSameValues(newValues: ContentValues) = COMPARED_COLUMNS.all { column ->
+            values[column] == newValues.getAsString(column)
+        }
+    }
+
+    /**
+     * State shared by every insert within a single [applyBatch] or [bulkInsert]
+     */
+    private class BatchState(
+            db: SQLiteDatabase,
+            /**
+             * Existing artwork for every token known to be part of the batch,
+             * with a null value if there is no existing artwork with that token
+             */
+            val existingArtwork: MutableMap<String, ExistingArtwork?>
+    ) {
+        val updateDateModifiedStatement: SQLiteStatement = db.compileStatement(
+                "UPDATE $TABLE_NAME SET ${ProviderContract.Artwork.DATE_MODIFIED}=? " +
+                        "WHERE ${BaseColumns._ID}=?")
+        val updateDataStatement: SQLiteStatement = db.compileStatement(
+                "UPDATE $TABLE_NAME SET ${ProviderContract.Artwork.DATA}=? " +
+                        "WHERE ${BaseColumns._ID}=?")
+
+        fun close() {
+            updateDateModifiedStatement.close()
+            updateDataStatement.close()
+        }
     }
 
     /**
@@ -263,6 +355,8 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
             ProviderContract.Artwork.DATE_MODIFIED to ProviderContract.Artwork.DATE_MODIFIED)
 
     private lateinit var databaseHelper: DatabaseHelper
+    private lateinit var cacheDirectory: File
+    private lateinit var artworkCache: ArtworkCache
     private lateinit var authority: String
     private var hasDocumentsProvider = false
     final override val contentUri: Uri by lazy {
@@ -271,14 +365,35 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         ProviderContract.getProviderClient(context, javaClass).contentUri
     }
 
+    /**
+     * Held while downloading each artwork so that concurrent requests
+     * for the same artwork wait for a single download
+     */
+    private val downloadLock = KeyedLock<Long>()
+
+    /**
+     * Whether [openFile] for [Artwork] is this class's default implementation, allowing
+     * interrupted downloads of HTTP(S) persistent URIs to be resumed.
+     */
+    private val usesDefaultOpenFile by lazy {
+        try {
+            javaClass.getMethod("openFile", Artwork::class.java)
+                    .declaringClass == MuzeiArtProvider::class.java
+        } catch (e: NoSuchMethodException) {
+            false
+        }
+    }
+
     private val applyingBatch = ThreadLocal<Boolean>()
     private val changedUris = ThreadLocal<MutableSet<Uri>>()
+    private val batchState = ThreadLocal<BatchState?>()
 
     private fun applyingBatch(): Boolean {
         return applyingBatch.get() != null && applyingBatch.get()!!
     }
 
     private fun onOperationComplete() {
+        invalidateArtworkCount()
         val context = context ?: return
         val contentResolver = context.contentResolver
         for (uri in changedUris.get()!!) {
@@ -289,11 +404,95 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         }
     }
 
+    private val artworkCountLock = Any()
+    /**
+     * The number of artwork, cached between changes so that picking random artwork
+     * doesn't count every row each time. -1 when it must be counted again.
+     */
+    private var cachedArtworkCount = -1L
+    private var artworkCountGeneration = 0
+
+    private fun invalidateArtworkCount() {
+        synchronized(artworkCountLock) {
+            cachedArtworkCount = -1L
+            artworkCountGeneration++
+        }
+    }
+
+    private fun getArtworkCount(db: SQLiteDatabase): Long {
+        val generation = synchronized(artworkCountLock) {
+            if (cachedArtworkCount >= 0) {
+                return cachedArtworkCount
+            }
+            artworkCountGeneration
+        }
+        val count = DatabaseUtils.queryNumEntries(db, TABLE_NAME)
+        synchronized(artworkCountLock) {
+            // Only cache the count if the artwork didn't change while counting
+            if (generation == artworkCountGeneration) {
+                cachedArtworkCount = count
+            }
+        }
+        return count
+    }
+
+    /**
+     * Select up to [limit] random artwork ids that aren't in [excludedIds]. Rather than
+     * sorting every row, each id is found with a lookup on the primary key: the first id
+     * at or after a random value between the smallest and largest ids, wrapping around
+     * to the smallest id. Ids following a gap left by deleted artwork are therefore
+     * somewhat more likely to be picked.
+     */
+    private fun selectRandomArtworkIds(
+            db: SQLiteDatabase,
+            excludedIds: List<Long>,
+            limit: Int
+    ): LongArray {
+        val (minId, maxId) = db.rawQuery("SELECT MIN(${BaseColumns._ID}), " +
+                "MAX(${BaseColumns._ID}) FROM $TABLE_NAME", null).use { data ->
+            if (!data.moveToFirst() || data.isNull(0)) {
+                return LongArray(0)
+            }
+            data.getLong(0) to data.getLong(1)
+        }
+        val skippedIds = excludedIds.distinct().take(MAX_EXCLUDED_ARTWORK_IDS)
+                .mapTo(ArrayList()) { it.toString() }
+        val randomIds = ArrayList<Long>(limit)
+        while (randomIds.size < limit) {
+            val notSkipped = if (skippedIds.isEmpty()) {
+                ""
+            } else {
+                " AND ${BaseColumns._ID} NOT IN (${skippedIds.joinToString(",") { "?" }})"
+            }
+            val start = Random.nextLong(minId, maxId + 1).toString()
+            val id = db.queryFirstArtworkId("${BaseColumns._ID} >= ?$notSkipped",
+                    arrayOf(start) + skippedIds)
+                    ?: db.queryFirstArtworkId("${BaseColumns._ID} < ?$notSkipped",
+                            arrayOf(start) + skippedIds)
+                    // Every artwork has been excluded or already picked
+                    ?: break
+            randomIds.add(id)
+            skippedIds.add(id.toString())
+        }
+        return randomIds.toLongArray()
+    }
+
+    private fun SQLiteDatabase.queryFirstArtworkId(
+            selection: String,
+            selectionArgs: Array<String>
+    ): Long? = query(TABLE_NAME, arrayOf(BaseColumns._ID), selection, selectionArgs,
+            null, null, BaseColumns._ID, "1").use { data ->
+        if (data.moveToFirst()) data.getLong(0) else null
+    }
+
     final override val lastAddedArtwork: Artwork? get() = query(contentUri, null, null, null,
             "${BaseColumns._ID} DESC").use { data ->
         return if (data.moveToFirst()) Artwork.fromCursor(data) else null
     }
 
+    final override val maxImageSize: Point?
+        get() = context?.getSharedPreferences(authority, Context.MODE_PRIVATE)?.getMaxImageSize()
+
     final override fun addArtwork(artwork: Artwork): Uri? {
         return insert(contentUri, artwork.toContentValues())
     }
@@ -429,6 +628,63 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
                         }
                     }
                 }
+                METHOD_GET_RANDOM_ARTWORK_IDS -> {
+                    val db = databaseHelper.readableDatabase
+                    val artworkCount = getArtworkCount(db)
+                    // Avoid recently loaded artwork, but don't exclude *all* artwork
+                    // in cases where a large percentage of artwork has been deleted
+                    val prefs = context.getSharedPreferences(authority, Context.MODE_PRIVATE)
+                    val recentArtworkIds = prefs.getRecentIds(PREF_RECENT_ARTWORK_IDS)
+                    while (recentArtworkIds.size > artworkCount / 2) {
+                        recentArtworkIds.removeFirst()
+                    }
+                    val excludedIds = recentArtworkIds +
+                            (extras?.getLongArray(KEY_EXCLUDED_ARTWORK_IDS)?.toList() ?: emptyList())
+                    val limit = extras?.getInt(KEY_RANDOM_ARTWORK_LIMIT, 1)
+                            ?.coerceIn(1, MAX_RANDOM_ARTWORK_LIMIT) ?: 1
+                    val randomIds = selectRandomArtworkIds(db, excludedIds, limit)
+                    return Bundle().apply {
+                        putLong(KEY_ARTWORK_COUNT, artworkCount)
+                        putLongArray(KEY_RANDOM_ARTWORK_IDS, randomIds)
+                    }.also {
+                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                            Log.v(TAG, "For $METHOD_GET_RANDOM_ARTWORK_IDS returning $it")
+                        }
+                    }
+                }
+                METHOD_SET_MAX_IMAGE_SIZE -> if (extras != null) {
+                    val width = extras.getInt(KEY_MAX_IMAGE_WIDTH)
+                    val height = extras.getInt(KEY_MAX_IMAGE_HEIGHT)
+                    if (width > 0 && height > 0) {
+                        val prefs = context.getSharedPreferences(authority, Context.MODE_PRIVATE)
+                        val editor = prefs.edit()
+                        editor.putMaxImageSize(Point(width, height))
+                        editor.apply()
+                    }
+                }
+                METHOD_SET_PINNED_ARTWORK_IDS -> {
+                    val pinnedArtworkIds = ArrayDeque<Long>()
+                    extras?.getLongArray(KEY_PINNED_ARTWORK_IDS)?.forEach { id ->
+                        pinnedArtworkIds.add(id)
+                    }
+                    val prefs = context.getSharedPreferences(authority, Context.MODE_PRIVATE)
+                    val editor = prefs.edit()
+                    editor.putRecentIds(PREF_PINNED_ARTWORK_IDS, pinnedArtworkIds)
+                    editor.apply()
+                }
+                METHOD_GET_CACHE_STATS -> {
+                    return Bundle().apply {
+                        putLong(KEY_CACHE_SIZE, artworkCache.size)
+                        putInt(KEY_CACHE_COUNT, artworkCache.count)
+                        putLong(KEY_CACHE_HITS, artworkCache.hits)
+                        putLong(KEY_CACHE_MISSES, artworkCache.misses)
+                        putLong(KEY_CACHE_EVICTIONS, artworkCache.evictions)
+                    }.also {
+                        if (Log.isLoggable(TAG, Log.VERBOSE)) {
+                            Log.v(TAG, "For $METHOD_GET_CACHE_STATS returning $it")
+                        }
+                    }
+                }
                 METHOD_GET_DESCRIPTION -> {
                     return Bundle().apply {
                         putString(KEY_DESCRIPTION, getDescription())
@@ -655,6 +911,9 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         authority = contentUri.authority!!
         val databaseName = authority.substring(authority.lastIndexOf('.') + 1)
         databaseHelper = DatabaseHelper(context!!, databaseName)
+        cacheDirectory = File(context!!.cacheDir, "muzei_$authority")
+        artworkCache = ArtworkCache(cacheDirectory,
+                context!!.getSharedPreferences(authority, Context.MODE_PRIVATE))
         return true
     }
 
@@ -725,9 +984,24 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         try {
             Trace.beginSection("applyBatch")
             applyingBatch.set(true)
+            // Resolve the tokens of all of the inserted artwork up front
+            val tokens = operations.mapIndexedNotNull { index, operation ->
+                if (operation.uri != contentUri) {
+                    return@mapIndexedNotNull null
+                }
+                try {
+                    // Operations with back references can't be resolved yet
+                    // and fall back to looking up their token individually
+                    operation.resolveValueBackReferences(emptyArray(), index)
+                } catch (e: Exception) {
+                    null
+                }?.getAsString(ProviderContract.Artwork.TOKEN)
+            }
+            startBatch(db, tokens)
             results = super.applyBatch(operations)
             db.setTransactionSuccessful()
         } finally {
+            endBatch()
             db.endTransaction()
             applyingBatch.set(false)
             onOperationComplete()
@@ -747,9 +1021,15 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         try {
             Trace.beginSection("bulkInsert")
             applyingBatch.set(true)
+            startBatch(db, if (uri == contentUri) {
+                values.map { it.getAsString(ProviderContract.Artwork.TOKEN) }
+            } else {
+                emptyList()
+            })
             numberInserted = super.bulkInsert(uri, values)
             db.setTransactionSuccessful()
         } finally {
+            endBatch()
             db.endTransaction()
             applyingBatch.set(false)
             onOperationComplete()
@@ -758,6 +1038,48 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         return numberInserted
     }
 
+    /**
+     * Look up the existing artwork for every one of the [tokens] in as few queries
+     * as possible and compile the statements used by every insert in the batch.
+     */
+    private fun startBatch(db: SQLiteDatabase, tokens: List<String?>) {
+        val existingArtwork = HashMap<String, ExistingArtwork?>()
+        val distinctTokens = tokens.filterNotNull().filter { it.isNotEmpty() }.distinct()
+        distinctTokens.chunked(MAX_SQL_VARIABLES).forEach { chunk ->
+            chunk.forEach { token -> existingArtwork[token] = null }
+            db.query(TABLE_NAME,
+                    arrayOf(BaseColumns._ID, ProviderContract.Artwork.TOKEN) + COMPARED_COLUMNS,
+                    "${ProviderContract.Artwork.TOKEN} IN (${chunk.joinToString { "?" }})",
+                    chunk.toTypedArray(),
+                    null, null, null).use { data ->
+                val tokenColumnIndex = data.getColumnIndex(ProviderContract.Artwork.TOKEN)
+                while (data.moveToNext()) {
+                    existingArtwork[data.getString(tokenColumnIndex)] = ExistingArtwork(data)
+                }
+            }
+        }
+        batchState.set(BatchState(db, existingArtwork))
+    }
+
+    private fun endBatch() {
+        batchState.get()?.close()
+        batchState.set(null)
+    }
+
+    private fun getExistingArtwork(token: String): ExistingArtwork? {
+        val existingArtwork = batchState.get()?.existingArtwork
+        if (existingArtwork != null && existingArtwork.containsKey(token)) {
+            return existingArtwork[token]
+        }
+        return databaseHelper.readableDatabase.query(TABLE_NAME,
+                arrayOf(BaseColumns._ID) + COMPARED_COLUMNS,
+                "${ProviderContract.Artwork.TOKEN}=?",
+                arrayOf(token),
+                null, null, null).use { data ->
+            if (data.moveToFirst()) ExistingArtwork(data) else null
+        }
+    }
+
     /**
      * @suppress
      */
@@ -775,49 +1097,37 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
                 }
                 values.remove(token)
             } else {
-                query(contentUri, null,
-                        "${ProviderContract.Artwork.TOKEN}=?",
-                        arrayOf(token), null).use { existingData ->
-                    if (existingData.moveToFirst()) {
-                        // If there's already a row with the same token, update it rather than
-                        // inserting a new row
-
-                        // But first check whether there's actually anything changing
-                        val title = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.TITLE))
-                        val byline = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.BYLINE))
-                        val attribution = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.ATTRIBUTION))
-                        val persistentUri = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.PERSISTENT_URI))
-                        val webUri = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.WEB_URI))
-                        val metadata = existingData.getString(existingData.getColumnIndex(
-                                ProviderContract.Artwork.METADATA))
-                        val noChange =
-                                title == values.getAsString(ProviderContract.Artwork.TITLE) &&
-                                byline == values.getAsString(ProviderContract.Artwork.BYLINE) &&
-                                attribution == values.getAsString(ProviderContract.Artwork.ATTRIBUTION) &&
-                                persistentUri == values.getAsString(ProviderContract.Artwork.PERSISTENT_URI) &&
-                                webUri == values.getAsString(ProviderContract.Artwork.WEB_URI) &&
-                                metadata == values.getAsString(ProviderContract.Artwork.METADATA)
-                        val id = existingData.getLong(existingData.getColumnIndex(BaseColumns._ID))
-                        val updateUri = ContentUris.withAppendedId(contentUri, id)
-                        if (noChange) {
-                            // Just update the DATE_MODIFIED and don't send a notifyChange()
+                val existingArtwork = getExistingArtwork(token)
+                if (existingArtwork != null) {
+                    // If there's already a row with the same token, update it rather than
+                    // inserting a new row
+
+                    // But first check whether there's actually anything changing
+                    val noChange = existingArtwork.hasSameValues(values)
+                    val id = existingArtwork.id
+                    val updateUri = ContentUris.withAppendedId(contentUri, id)
+                    if (noChange) {
+                        // Just update the DATE_MODIFIED and don't send a notifyChange()
+                        val now = System.currentTimeMillis()
+                        val statement = batchState.get()?.updateDateModifiedStatement
+                        if (statement != null) {
+                            statement.bindLong(1, now)
+                            statement.bindLong(2, id)
+                            statement.executeUpdateDelete()
+                        } else {
                             values.clear()
-                            values.put(ProviderContract.Artwork.DATE_MODIFIED,
-                                    System.currentTimeMillis())
+                            values.put(ProviderContract.Artwork.DATE_MODIFIED, now)
                             val db = databaseHelper.writableDatabase
                             db.update(TABLE_NAME, values, "${BaseColumns._ID}=?",
                                     arrayOf(id.toString()))
-                        } else {
-                            // Do a full update
-                            update(updateUri, values, null, null)
                         }
-                        return updateUri
+                    } else {
+                        // Do a full update
+                        batchState.get()?.existingArtwork?.put(token,
+                                ExistingArtwork(id, values))
+                        update(updateUri, values, null, null)
                     }
+                    return updateUri
                 }
             }
         }
@@ -837,18 +1147,33 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         val hasPersistentUri = values.containsKey(ProviderContract.Artwork.PERSISTENT_URI) &&
                 !values.getAsString(ProviderContract.Artwork.PERSISTENT_URI).isNullOrEmpty()
         val directory = if (hasPersistentUri) {
-            File(context.cacheDir, "muzei_$authority")
+            cacheDirectory
         } else {
             File(context.filesDir, "muzei_$authority")
         }
 
         directory.mkdirs()
         val artwork = File(directory, rowId.toString())
-        db.update(TABLE_NAME, ContentValues().apply {
-            put(ProviderContract.Artwork.DATA, artwork.absolutePath)
-        }, "${BaseColumns._ID}=$rowId", null)
+        val currentBatchState = batchState.get()
+        if (currentBatchState != null) {
+            currentBatchState.updateDataStatement.apply {
+                bindString(1, artwork.absolutePath)
+                bindLong(2, rowId)
+                executeUpdateDelete()
+            }
+            val token = values.getAsString(ProviderContract.Artwork.TOKEN)
+            if (!token.isNullOrEmpty()) {
+                // Later inserts in the same batch should update this artwork
+                currentBatchState.existingArtwork[token] = ExistingArtwork(rowId, values)
+            }
+        } else {
+            db.update(TABLE_NAME, ContentValues().apply {
+                put(ProviderContract.Artwork.DATA, artwork.absolutePath)
+            }, "${BaseColumns._ID}=$rowId", null)
+        }
         db.setTransactionSuccessful()
         db.endTransaction()
+        invalidateArtworkCount()
         // Creates a URI with the artwork ID pattern and the new row ID appended to it.
         val artworkUri = ContentUris.withAppendedId(contentUri, rowId)
         if (applyingBatch()) {
@@ -899,16 +1224,26 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
                 val fileName = rowsToDelete.getString(0)
                 val file = if (fileName != null) File(fileName) else null
                 if (file != null && file.exists()) {
-                    if (!file.delete()) {
+                    if (!artworkCache.remove(file)) {
                         if (Log.isLoggable(TAG, Log.INFO)) {
                             Log.i(TAG, "Unable to delete $file")
                         }
                     }
                 }
+                // Also delete any partially downloaded file
+                if (fileName != null) {
+                    File("$fileName.download").delete()
+                    File("$fileName.download.validator").delete()
+                }
             }
         }
         // Then delete the rows themselves
         count = db.delete(TABLE_NAME, finalWhere, selectionArgs)
+        if (count > 0) {
+            invalidateArtworkCount()
+            // Any artwork resolved at the start of the batch may have just been deleted
+            batchState.get()?.existingArtwork?.clear()
+        }
         val context = context ?: return count
         if (count > 0) {
             val documentUri = DocumentsContract.buildChildDocumentsUri(
@@ -962,6 +1297,10 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         // Update the DATE_MODIFIED
         values.put(ProviderContract.Artwork.DATE_MODIFIED, System.currentTimeMillis())
         count = db.update(TABLE_NAME, values, finalWhere, selectionArgs)
+        if (count > 0) {
+            // Any artwork resolved at the start of the batch may now have different values
+            batchState.get()?.existingArtwork?.clear()
+        }
         val context = context ?: return count
         if (count > 0) {
             val documentUri = DocumentsContract.buildChildDocumentsUri(
@@ -995,7 +1334,7 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
             val artwork = Artwork.fromCursor(data)
 
             if (artwork.persistentUri != null && artwork.data.exists()) {
-                artwork.data.delete()
+                artworkCache.remove(artwork.data)
             }
         }
     }
@@ -1020,6 +1359,46 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
         return true
     }
 
+    /**
+     * Whether the local [persistent URI][Artwork.persistentUri] of the given artwork
+     * (a `content://`, `file://`, or `android.resource://` URI) should be opened directly
+     * rather than first being copied into the artwork's [data file][Artwork.data]. This
+     * avoids duplicating images that are already on the device.
+     *
+     * The default implementation returns `false`, copying the image as before. Only
+     * return `true` if the persistent URI will remain accessible for as long as the
+     * artwork exists, as a revoked URI permission or removed file will otherwise leave
+     * the artwork without an image.
+     *
+     * @param artwork The Artwork being opened
+     * @return Whether the artwork's persistent URI should be opened directly
+     */
+    public open fun isPassthroughEnabled(artwork: Artwork): Boolean {
+        return false
+    }
+
+    /**
+     * The maximum total size, in bytes, of the artwork downloaded from each artwork's
+     * [persistent URI][Artwork.persistentUri]. When this is exceeded, the least recently
+     * used artwork is removed from the cache and will be downloaded again if needed. The
+     * artwork currently shown by Muzei and the artwork Muzei has downloaded ahead of time
+     * are never removed.
+     *
+     * The default is 100 MiB.
+     */
+    public open val maxCacheBytes: Long
+        get() = DEFAULT_MAX_CACHE_BYTES
+
+    /**
+     * The maximum number of artwork downloaded from each artwork's
+     * [persistent URI][Artwork.persistentUri] to keep cached, evicted in the same way
+     * as [maxCacheBytes].
+     *
+     * The default is 100.
+     */
+    public open val maxCacheCount: Int
+        get() = MAX_RECENT_ARTWORK
+
     /**
      * Provide an InputStream to the binary data associated with artwork that has not yet been
      * cached. The default implementation retrieves the image from the
@@ -1030,7 +1409,7 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
      *  * `android.resource://...`.
      *  * `file://...`.
      *  * `file:///android_asset/...`.
-     *  * `http://...` or `https://...`.
+     *  * `http://...` or `https://...`, downloaded using the shared [MuzeiHttpClient].
      *
      * Throwing any exception other than an [IOException] will be considered a permanent
      * error that will result in a call to [onInvalidArtwork].
@@ -1067,13 +1446,8 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
                 FileInputStream(File(persistentUri.path!!))
             }
         } else if ("http" == scheme || "https" == scheme) {
-            val url = URL(persistentUri.toString())
-            val urlConnection = url.openConnection() as HttpURLConnection
-            val responseCode = urlConnection.responseCode
-            if (responseCode !in 200..299) {
-                throw IOException("HTTP error response $responseCode")
-            }
-            urlConnection.inputStream
+            ArtworkDownloader(MuzeiHttpClient.getInstance(context))
+                    .open(persistentUri.toString())
         } else {
             throw FileNotFoundException("Unsupported scheme $scheme for $persistentUri")
         }) ?: throw FileNotFoundException("Null input stream for URI: $persistentUri")
@@ -1097,38 +1471,196 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
             onInvalidArtwork(artwork)
             throw SecurityException("Artwork $artwork was marked as invalid")
         }
+        if (artwork.data.exists()) {
+            if (isCached(artwork)) {
+                artworkCache.recordHit(artwork.data)
+            }
+        } else if (mode == "r" && isPassthroughEnabled(artwork)) {
+            openPassthrough(artwork)?.let { return it }
+        }
         if (!artwork.data.exists() && mode == "r") {
             // Download the image from the persistent URI for read-only operations
-            // rather than throw a FileNotFoundException
-            val directory = artwork.data.parentFile
-            // Ensure that the parent directory of the artwork exists
-            // as otherwise FileOutputStream will fail
-            if (!directory!!.exists() && !directory.mkdirs()) {
-                throw FileNotFoundException("Unable to create directory $directory for $artwork")
-            }
-            try {
-                openFile(artwork).use { input ->
-                    FileOutputStream(artwork.data).use { output ->
-                        input.copyTo(output)
+            // rather than throw a FileNotFoundException. Concurrent requests for
+            // the same artwork wait for a single download rather than each
+            // downloading the artwork themselves.
+            downloadLock.withLock(artwork.id) {
+                if (!artwork.data.exists()) {
+                    downloadArtwork(artwork, uri)
+                    if (isCached(artwork)) {
+                        artworkCache.recordMiss(artwork.data)
+                        trimCache(artwork.id)
                     }
                 }
-            } catch (e: Exception) {
-                if (e !is IOException) {
-                    if (Log.isLoggable(TAG, Log.INFO)) {
-                        Log.i(TAG, "Unable to open artwork $artwork for $uri", e)
+            }
+        }
+        return ParcelFileDescriptor.open(artwork.data, ParcelFileDescriptor.parseMode(mode))
+    }
+
+    /**
+     * Whether the artwork's data file is stored in the cache directory, where it can be
+     * evicted and downloaded again from its persistent URI.
+     */
+    private fun isCached(artwork: Artwork) = artwork.data.parentFile == cacheDirectory
+
+    /**
+     * Evict the least recently used artwork until the cache fits within
+     * [maxCacheBytes] and [maxCacheCount], never evicting the current artwork,
+     * the artwork Muzei has pinned, or the artwork with the given [openedArtworkId].
+     */
+    private fun trimCache(openedArtworkId: Long) {
+        val context = context ?: return
+        val prefs = context.getSharedPreferences(authority, Context.MODE_PRIVATE)
+        val pinnedNames = HashSet<String>()
+        pinnedNames.add(openedArtworkId.toString())
+        // The most recently loaded artwork is the current artwork
+        prefs.getRecentIds(PREF_RECENT_ARTWORK_IDS).peekLast()?.let { currentId ->
+            pinnedNames.add(currentId.toString())
+        }
+        prefs.getRecentIds(PREF_PINNED_ARTWORK_IDS).forEach { id ->
+            pinnedNames.add(id.toString())
+        }
+        artworkCache.trimToSize(maxCacheBytes, maxCacheCount, pinnedNames)
+    }
+
+    /**
+     * Open the artwork's local persistent URI directly, returning null if it is not a local
+     * URI that can be opened as a whole file, in which case it should be copied instead.
+     */
+    private fun openPassthrough(artwork: Artwork): ParcelFileDescriptor? {
+        val context = context ?: return null
+        val persistentUri = artwork.persistentUri ?: return null
+        return try {
+            when (persistentUri.scheme) {
+                ContentResolver.SCHEME_CONTENT -> {
+                    context.contentResolver.openFileDescriptor(persistentUri, "r")
+                }
+                ContentResolver.SCHEME_ANDROID_RESOURCE -> {
+                    context.contentResolver.openAssetFileDescriptor(persistentUri, "r")?.run {
+                        if (declaredLength < 0L) {
+                            parcelFileDescriptor
+                        } else {
+                            // Resources stored within the APK are not whole files
+                            close()
+                            null
+                        }
                     }
-                    onInvalidArtwork(artwork)
                 }
-                // Delete the file in cases of an error so that we will try again from scratch next time.
-                if (artwork.data.exists() && !artwork.data.delete()) {
-                    if (Log.isLoggable(TAG, Log.INFO)) {
-                        Log.i(TAG, "Error deleting partially downloaded file after error", e)
+                ContentResolver.SCHEME_FILE -> {
+                    val segments = persistentUri.pathSegments
+                    if (segments.isNotEmpty() && "android_asset" == segments[0]) {
+                        null
+                    } else {
+                        ParcelFileDescriptor.open(File(persistentUri.path!!),
+                                ParcelFileDescriptor.MODE_READ_ONLY)
                     }
                 }
-                throw FileNotFoundException("Could not download artwork $artwork for $uri: ${e.message}")
+                else -> null
+            }
+        } catch (e: Exception) {
+            // Fall back to copying the image, which will report any permanent errors
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Unable to directly open $persistentUri for $artwork", e)
             }
+            null
         }
-        return ParcelFileDescriptor.open(artwork.data, ParcelFileDescriptor.parseMode(mode))
+    }
+
+    /**
+     * Download the artwork to a temporary file, only moving it to the artwork's
+     * [data][Artwork.data] file once the download is complete.
+     */
+    @Throws(FileNotFoundException::class)
+    private fun downloadArtwork(artwork: Artwork, uri: Uri) {
+        val directory = artwork.data.parentFile
+        // Ensure that the parent directory of the artwork exists
+        // as otherwise FileOutputStream will fail
+        if (!directory!!.exists() && !directory.mkdirs()) {
+            throw FileNotFoundException("Unable to create directory $directory for $artwork")
+        }
+        val partialFile = File(directory, "${artwork.data.name}.download")
+        // The ETag or Last-Modified date of the partially downloaded file, used to
+        // ensure that a resumed download continues the same version of the image
+        val validatorFile = File(directory, "${artwork.data.name}.download.validator")
+        try {
+            val resumedInput = if (partialFile.length() > 0) {
+                openFileFromOffset(artwork, partialFile.length(), validatorFile)
+            } else {
+                null
+            }
+            (resumedInput ?: if (canResumeDownload(artwork)) {
+                openResumableFile(artwork, validatorFile)
+            } else {
+                openFile(artwork)
+            }).use { input ->
+                FileOutputStream(partialFile, resumedInput != null).use { output ->
+                    input.copyTo(output)
+                }
+            }
+            if (!partialFile.renameTo(artwork.data)) {
+                throw IOException("Unable to move $partialFile to ${artwork.data}")
+            }
+            validatorFile.delete()
+        } catch (e: Exception) {
+            if (e !is IOException) {
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, "Unable to open artwork $artwork for $uri", e)
+                }
+                onInvalidArtwork(artwork)
+            }
+            // Keep the partially downloaded file if we can resume from where we
+            // left off, otherwise delete it so that we try again from scratch next time.
+            val canResume = e is IOException && canResumeDownload(artwork)
+            if (!canResume && partialFile.exists() && !partialFile.delete()) {
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, "Error deleting partially downloaded file after error", e)
+                }
+            }
+            if (!canResume) {
+                validatorFile.delete()
+            }
+            throw FileNotFoundException("Could not download artwork $artwork for $uri: ${e.message}")
+        }
+    }
+
+    private fun canResumeDownload(artwork: Artwork): Boolean {
+        val scheme = artwork.persistentUri?.scheme
+        return ("http" == scheme || "https" == scheme) && usesDefaultOpenFile
+    }
+
+    /**
+     * Open the artwork from the start, equivalent to the default [openFile], saving the
+     * response's ETag or Last-Modified date to [validatorFile] so that the download can
+     * later be resumed if it is interrupted.
+     */
+    @Throws(IOException::class)
+    private fun openResumableFile(artwork: Artwork, validatorFile: File): InputStream {
+        val context = context ?: throw IOException()
+        return ArtworkDownloader(MuzeiHttpClient.getInstance(context))
+                .openResumable(artwork.persistentUri.toString(), validatorFile)
+    }
+
+    /**
+     * Open the artwork starting at the given [offset] using an HTTP Range request
+     * conditional on the image still matching the validator saved in [validatorFile],
+     * returning null if the download cannot be resumed and must start from scratch.
+     */
+    @Throws(IOException::class)
+    private fun openFileFromOffset(
+            artwork: Artwork,
+            offset: Long,
+            validatorFile: File
+    ): InputStream? {
+        if (!canResumeDownload(artwork)) {
+            return null
+        }
+        val context = context ?: return null
+        return ArtworkDownloader(MuzeiHttpClient.getInstance(context))
+                .openFromOffset(artwork.persistentUri.toString(), offset, validatorFile)
+                ?.also {
+                    if (Log.isLoggable(TAG, Log.DEBUG)) {
+                        Log.d(TAG, "Resuming download of $artwork from $offset")
+                    }
+                }
     }
 
     /**
@@ -1139,7 +1671,7 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
             databaseName: String
     ) : SQLiteOpenHelper(context, databaseName, null, DATABASE_VERSION) {
         companion object {
-            private const val DATABASE_VERSION = 1
+            private const val DATABASE_VERSION = 2
         }
 
         /**
@@ -1159,11 +1691,29 @@ public abstract class MuzeiArtProvider : ContentProvider(), ProviderClient {
                     + ProviderContract.Artwork.DATA + " TEXT,"
                     + ProviderContract.Artwork.DATE_ADDED + " INTEGER NOT NULL,"
                     + ProviderContract.Artwork.DATE_MODIFIED + " INTEGER NOT NULL);")
+            createIndices(db)
+        }
+
+        /**
+         * Creates the indices used to look up artwork by token (on every insert),
+         * by metadata, and by date modified (when deleting stale artwork).
+         */
+        private fun createIndices(db: SQLiteDatabase) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS ${TABLE_NAME}_${ProviderContract.Artwork.TOKEN} " +
+                    "ON $TABLE_NAME (${ProviderContract.Artwork.TOKEN})")
+            db.execSQL("CREATE INDEX IF NOT EXISTS ${TABLE_NAME}_${ProviderContract.Artwork.METADATA} " +
+                    "ON $TABLE_NAME (${ProviderContract.Artwork.METADATA})")
+            db.execSQL("CREATE INDEX IF NOT EXISTS ${TABLE_NAME}_${ProviderContract.Artwork.DATE_MODIFIED} " +
+                    "ON $TABLE_NAME (${ProviderContract.Artwork.DATE_MODIFIED})")
         }
 
         /**
          * Upgrades the database.
          */
-        override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {}
+        override fun onUpgrade(db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+            if (oldVersion < 2) {
+                createIndices(db)
+            }
+        }
     }
 }
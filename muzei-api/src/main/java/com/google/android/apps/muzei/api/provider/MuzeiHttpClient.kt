@@ -0,0 +1,81 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.api.provider
+
+import android.content.Context
+import okhttp3.Cache
+import okhttp3.OkHttpClient
+import java.io.File
+import java.util.concurrent.TimeUnit
+
+/**
+ * Provides a single [OkHttpClient] shared across your app, used by the default implementation
+ * of [MuzeiArtProvider.openFile] to download artwork.
+ *
+ * Using the same client for your own requests (such as loading the list of artwork to add
+ * in [MuzeiArtProvider.onLoadRequested]) allows every request to share a single connection
+ * pool, which supports HTTP/2 and transparent gzip compression, and a single on-disk HTTP
+ * cache, which automatically makes conditional requests using the `ETag` and
+ * `Last-Modified` headers returned by the server.
+ *
+ * If you need to customize the client, such as adding an interceptor, use
+ * [OkHttpClient.newBuilder] on the shared client to retain the shared connection pool
+ * and cache:
+ *
+ * ```
+ * val client = MuzeiHttpClient.getInstance(context).newBuilder()
+ *     .addInterceptor(myInterceptor)
+ *     .build()
+ * ```
+ *
+ * As this class exposes [OkHttpClient], the Muzei API depends on OkHttp 3.12, the last
+ * version supporting API 14. Apps that use a newer OkHttp will use their version instead,
+ * as OkHttp 4 remains binary compatible with OkHttp 3.
+ */
+public object MuzeiHttpClient {
+    private const val CACHE_DIRECTORY = "muzei_http"
+    private const val CACHE_SIZE = 10L * 1024 * 1024 // 10 MiB
+    private const val CONNECT_TIMEOUT_SECONDS = 15L
+    private const val READ_TIMEOUT_SECONDS = 30L
+
+    @Volatile
+    private var instance: OkHttpClient? = null
+
+    /**
+     * Get the shared [OkHttpClient].
+     *
+     * @param context Any [Context], used to determine the location of the HTTP cache
+     * @return The [OkHttpClient] shared across your app
+     */
+    @JvmStatic
+    public fun getInstance(context: Context): OkHttpClient =
+            instance ?: synchronized(this) {
+                instance ?: newClient(File(context.applicationContext.cacheDir,
+                        CACHE_DIRECTORY)).also { instance = it }
+            }
+
+    /**
+     * Build a new client with the shared configuration, caching responses in
+     * the given [cacheDirectory].
+     */
+    internal fun newClient(cacheDirectory: File): OkHttpClient = OkHttpClient.Builder()
+            .cache(Cache(cacheDirectory, CACHE_SIZE))
+            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .writeTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .build()
+}
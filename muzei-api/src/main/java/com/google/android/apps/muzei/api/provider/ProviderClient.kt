@@ -16,6 +16,7 @@
 package com.google.android.apps.muzei.api.provider
 
 import android.content.ContentResolver
+import android.graphics.Point
 import android.net.Uri
 
 /**
@@ -39,6 +40,21 @@ public interface ProviderClient {
      */
     public val lastAddedArtwork: Artwork?
 
+    /**
+     * Retrieve the maximum size, in pixels, that Muzei needs artwork to be. Artwork is
+     * scaled to fill an area of this size (the size of the display in portrait
+     * orientation), so there is no benefit to downloading images larger than is needed
+     * to cover this size.
+     *
+     * If your artwork comes from a server that can resize images, you should use this to
+     * request appropriately sized images for your [Artwork.persistentUri], saving both
+     * bandwidth and storage.
+     *
+     * @return The maximum size needed by Muzei, or null if Muzei has not provided a size
+     */
+    public val maxImageSize: Point?
+        get() = null
+
     /**
      * Add a new piece of artwork to the [MuzeiArtProvider].
      *
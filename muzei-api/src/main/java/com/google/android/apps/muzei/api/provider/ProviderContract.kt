@@ -22,11 +22,13 @@ import android.content.ContentUris
 import android.content.Context
 import android.content.OperationApplicationException
 import android.content.pm.PackageManager
+import android.graphics.Point
 import android.net.Uri
 import android.os.Build
 import android.os.RemoteException
 import android.provider.BaseColumns
 import androidx.annotation.RequiresApi
+import com.google.android.apps.muzei.api.internal.getMaxImageSize
 import java.util.ArrayList
 
 /**
@@ -128,6 +130,10 @@ public object ProviderContract {
                         null
                 }
 
+            override val maxImageSize: Point?
+                get() = context.getSharedPreferences(authority, Context.MODE_PRIVATE)
+                        .getMaxImageSize()
+
             override fun addArtwork(
                     artwork: com.google.android.apps.muzei.api.provider.Artwork
             ): Uri? {
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.api.internal
+
+import okhttp3.OkHttpClient
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.IOException
+
+/**
+ * Tests for [ArtworkDownloader] against a [MockWebServer].
+ */
+public class ArtworkDownloaderTest {
+
+    @get:Rule
+    public val server: MockWebServer = MockWebServer()
+
+    @get:Rule
+    public val temporaryFolder: TemporaryFolder = TemporaryFolder()
+
+    private val downloader = ArtworkDownloader(OkHttpClient())
+
+    private val url by lazy { server.url("/image.jpg").toString() }
+
+    private val validatorFile by lazy { File(temporaryFolder.root, "image.download.validator") }
+
+    @Test
+    public fun openReadsImageWithoutStoringIt() {
+        server.enqueue(MockResponse().setBody("image"))
+
+        assertEquals("image", downloader.open(url).reader().readText())
+        assertEquals("no-store", server.takeRequest().getHeader("Cache-Control"))
+    }
+
+    @Test(expected = IOException::class)
+    public fun openThrowsOnErrorResponse() {
+        server.enqueue(MockResponse().setResponseCode(500))
+
+        downloader.open(url)
+    }
+
+    @Test
+    public fun openResumableSavesStrongETag() {
+        server.enqueue(MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", "Mon, 04 Jan 2021 00:00:00 GMT")
+                .setBody("image"))
+
+        downloader.openResumable(url, validatorFile).close()
+        assertEquals("\"v1\"", validatorFile.readText())
+    }
+
+    @Test
+    public fun openResumableSavesLastModifiedInsteadOfWeakETag() {
+        server.enqueue(MockResponse()
+                .setHeader("ETag", "W/\"v1\"")
+                .setHeader("Last-Modified", "Mon, 04 Jan 2021 00:00:00 GMT")
+                .setBody("image"))
+
+        downloader.openResumable(url, validatorFile).close()
+        assertEquals("Mon, 04 Jan 2021 00:00:00 GMT", validatorFile.readText())
+    }
+
+    @Test
+    public fun openResumableWithoutValidatorDeletesValidatorFile() {
+        validatorFile.writeText("\"old\"")
+        server.enqueue(MockResponse().setBody("image"))
+
+        downloader.openResumable(url, validatorFile).close()
+        assertFalse(validatorFile.exists())
+    }
+
+    @Test
+    public fun openFromOffsetResumesUnchangedImage() {
+        validatorFile.writeText("\"v1\"")
+        server.enqueue(MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 3-4/5")
+                .setBody("ge"))
+
+        val input = downloader.openFromOffset(url, 3, validatorFile)
+        assertEquals("ge", input?.reader()?.readText())
+        val request = server.takeRequest()
+        assertEquals("bytes=3-", request.getHeader("Range"))
+        assertEquals("\"v1\"", request.getHeader("If-Range"))
+    }
+
+    @Test
+    public fun openFromOffsetRestartsChangedImage() {
+        validatorFile.writeText("\"v1\"")
+        // The server ignores the range when If-Range no longer matches
+        server.enqueue(MockResponse().setBody("new image"))
+
+        assertNull(downloader.openFromOffset(url, 3, validatorFile))
+    }
+
+    @Test
+    public fun openFromOffsetRestartsMismatchedRange() {
+        validatorFile.writeText("\"v1\"")
+        server.enqueue(MockResponse()
+                .setResponseCode(206)
+                .setHeader("Content-Range", "bytes 0-4/5")
+                .setBody("image"))
+
+        assertNull(downloader.openFromOffset(url, 3, validatorFile))
+    }
+
+    @Test
+    public fun openFromOffsetWithoutValidatorSkipsRequest() {
+        assertNull(downloader.openFromOffset(url, 3, validatorFile))
+        assertEquals(0, server.requestCount)
+    }
+}
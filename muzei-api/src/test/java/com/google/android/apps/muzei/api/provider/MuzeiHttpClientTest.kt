@@ -0,0 +1,71 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.api.provider
+
+import okhttp3.OkHttpClient
+import okhttp3.Request
+import okhttp3.mockwebserver.MockResponse
+import okhttp3.mockwebserver.MockWebServer
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+
+/**
+ * Tests for the client configuration shared by [MuzeiHttpClient], using a
+ * [MockWebServer].
+ */
+public class MuzeiHttpClientTest {
+
+    @get:Rule
+    public val server: MockWebServer = MockWebServer()
+
+    @get:Rule
+    public val temporaryFolder: TemporaryFolder = TemporaryFolder()
+
+    private fun get(client: OkHttpClient) = client.newCall(Request.Builder()
+            .url(server.url("/artwork.json"))
+            .build()).execute().use { response ->
+        response.body()?.string()
+    }
+
+    @Test
+    public fun revalidatesCachedResponseWithETag() {
+        val client = MuzeiHttpClient.newClient(temporaryFolder.root)
+        server.enqueue(MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "no-cache")
+                .setBody("[]"))
+        server.enqueue(MockResponse().setResponseCode(304))
+
+        assertEquals("[]", get(client))
+        assertNull(server.takeRequest().getHeader("If-None-Match"))
+        // The cached body is returned after the server confirms it is unchanged
+        assertEquals("[]", get(client))
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"))
+    }
+
+    @Test
+    public fun transparentlyRequestsGzip() {
+        val client = MuzeiHttpClient.newClient(temporaryFolder.root)
+        server.enqueue(MockResponse().setBody("[]"))
+
+        get(client)
+        assertEquals("gzip", server.takeRequest().getHeader("Accept-Encoding"))
+    }
+}
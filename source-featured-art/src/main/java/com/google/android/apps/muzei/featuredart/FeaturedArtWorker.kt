@@ -30,11 +30,11 @@ import androidx.work.OneTimeWorkRequestBuilder
 import androidx.work.WorkManager
 import androidx.work.WorkerParameters
 import com.google.android.apps.muzei.api.provider.Artwork
+import com.google.android.apps.muzei.api.provider.MuzeiHttpClient
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.featuredart.BuildConfig.FEATURED_ART_AUTHORITY
 import kotlinx.coroutines.asCoroutineDispatcher
 import kotlinx.coroutines.withContext
-import okhttp3.OkHttpClient
 import okhttp3.Request
 import org.json.JSONException
 import org.json.JSONObject
@@ -171,7 +171,7 @@ class FeaturedArtWorker(
 
     @Throws(IOException::class, JSONException::class)
     private fun fetchJsonObject(url: String): JSONObject {
-        val client = OkHttpClient.Builder().build()
+        val client = MuzeiHttpClient.getInstance(applicationContext)
 
         val request = Request.Builder()
                 .url(url)
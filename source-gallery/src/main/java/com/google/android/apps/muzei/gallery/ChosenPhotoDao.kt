@@ -228,6 +228,10 @@ internal abstract class ChosenPhotoDao {
                 context.contentResolver.delete(contentUri,
                         "${ProviderContract.Artwork.METADATA}=?",
                         arrayOf(chosenPhoto.uri.toString()))
+                if (chosenPhoto.isTreeUri) {
+                    GalleryDatabase.getInstance(context).directorySnapshotDao()
+                            .deleteForTree(chosenPhoto.uri)
+                }
                 val file = GalleryProvider.getCacheFileForUri(context, chosenPhoto.uri)
                 if (file?.exists() == true) {
                     if (!file.delete()) {
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.apps.muzei.gallery
+
+import android.net.Uri
+import androidx.room.ColumnInfo
+import androidx.room.Entity
+import androidx.room.TypeConverters
+import com.google.android.apps.muzei.gallery.converter.StringListTypeConverter
+import com.google.android.apps.muzei.gallery.converter.UriTypeConverter
+
+/**
+ * Entity representing the contents of a directory within a chosen tree URI at the time
+ * it was last scanned, allowing unchanged directories to be skipped on later scans.
+ */
+@Entity(tableName = "directory_snapshots", primaryKeys = ["tree_uri", "document_id"])
+internal data class DirectorySnapshot(
+        @field:TypeConverters(UriTypeConverter::class)
+        @ColumnInfo(name = "tree_uri")
+        val treeUri: Uri,
+        @ColumnInfo(name = "document_id")
+        val documentId: String,
+        @ColumnInfo(name = "last_modified")
+        val lastModified: Long?,
+        @field:TypeConverters(StringListTypeConverter::class)
+        @ColumnInfo(name = "child_directories")
+        val childDirectories: List<String>,
+        @field:TypeConverters(StringListTypeConverter::class)
+        val images: List<String>
+)
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.apps.muzei.gallery
+
+import android.net.Uri
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+import androidx.room.Transaction
+import androidx.room.TypeConverters
+import com.google.android.apps.muzei.gallery.converter.UriTypeConverter
+
+/**
+ * Dao for [DirectorySnapshot]
+ */
+@Dao
+internal abstract class DirectorySnapshotDao {
+
+    companion object {
+        /**
+         * Stay well under SQLite's limit on the number of variables in a single statement
+         */
+        private const val MAX_DELETE_BATCH_SIZE = 500
+    }
+
+    @TypeConverters(UriTypeConverter::class)
+    @Query("SELECT * FROM directory_snapshots WHERE tree_uri = :treeUri")
+    abstract suspend fun snapshotsForTree(treeUri: Uri): List<DirectorySnapshot>
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    internal abstract suspend fun insertAll(snapshots: List<DirectorySnapshot>)
+
+    @TypeConverters(UriTypeConverter::class)
+    @Query("DELETE FROM directory_snapshots WHERE tree_uri = :treeUri AND document_id IN (:documentIds)")
+    internal abstract suspend fun deleteInternal(treeUri: Uri, documentIds: List<String>)
+
+    /**
+     * Save the [changedSnapshots] of the given [treeUri], removing the snapshots of
+     * the directories in [removedDocumentIds].
+     */
+    @Transaction
+    open suspend fun update(
+            treeUri: Uri,
+            changedSnapshots: List<DirectorySnapshot>,
+            removedDocumentIds: Collection<String>
+    ) {
+        insertAll(changedSnapshots)
+        removedDocumentIds.chunked(MAX_DELETE_BATCH_SIZE).forEach { documentIds ->
+            deleteInternal(treeUri, documentIds)
+        }
+    }
+
+    @TypeConverters(UriTypeConverter::class)
+    @Query("DELETE FROM directory_snapshots WHERE tree_uri = :treeUri")
+    abstract suspend fun deleteForTree(treeUri: Uri)
+}
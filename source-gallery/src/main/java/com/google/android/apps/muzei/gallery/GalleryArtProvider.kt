@@ -87,6 +87,11 @@ class GalleryArtProvider: MuzeiArtProvider() {
         }
     }
 
+    /**
+     * Photos are already on the device, so avoid copying them into a cached file
+     */
+    override fun isPassthroughEnabled(artwork: Artwork) = true
+
     @Throws(IOException::class)
     override fun openFile(artwork: Artwork): InputStream {
         try {
@@ -26,7 +26,8 @@ import androidx.sqlite.db.SupportSQLiteDatabase
 /**
  * Database for accessing Gallery data
  */
-@Database(entities = [(ChosenPhoto::class), (Metadata::class)], version = 7)
+@Database(entities = [(ChosenPhoto::class), (Metadata::class), (DirectorySnapshot::class),
+        (Geocode::class)], version = 9)
 internal abstract class GalleryDatabase : RoomDatabase() {
 
     companion object {
@@ -47,7 +48,9 @@ internal abstract class GalleryDatabase : RoomDatabase() {
                                 MIGRATION_3_4,
                                 MIGRATION_4_5,
                                 MIGRATION_5_6,
-                                MIGRATION_6_7)
+                                MIGRATION_6_7,
+                                MIGRATION_7_8,
+                                MIGRATION_8_9)
                         .build()
 
         private val MIGRATION_1_2 = object : Migration(1, 2) {
@@ -153,9 +156,33 @@ internal abstract class GalleryDatabase : RoomDatabase() {
                 database.execSQL("CREATE UNIQUE INDEX index_metadata_cache_uri " + "ON metadata_cache (uri)")
             }
         }
+
+        private val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("CREATE TABLE directory_snapshots ("
+                        + "tree_uri TEXT NOT NULL,"
+                        + "document_id TEXT NOT NULL,"
+                        + "last_modified INTEGER,"
+                        + "child_directories TEXT NOT NULL,"
+                        + "images TEXT NOT NULL,"
+                        + "PRIMARY KEY(tree_uri, document_id))")
+            }
+        }
+
+        private val MIGRATION_8_9 = object : Migration(8, 9) {
+            override fun migrate(database: SupportSQLiteDatabase) {
+                database.execSQL("CREATE TABLE geocode_cache ("
+                        + "cell TEXT PRIMARY KEY NOT NULL,"
+                        + "location TEXT)")
+            }
+        }
     }
 
     internal abstract fun chosenPhotoDao(): ChosenPhotoDao
 
     internal abstract fun metadataDao(): MetadataDao
+
+    internal abstract fun directorySnapshotDao(): DirectorySnapshotDao
+
+    internal abstract fun geocodeDao(): GeocodeDao
 }
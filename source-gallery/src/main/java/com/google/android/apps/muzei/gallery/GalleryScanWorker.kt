@@ -36,22 +36,34 @@ import androidx.exifinterface.media.ExifInterface
 import androidx.work.CoroutineWorker
 import androidx.work.ExistingWorkPolicy
 import androidx.work.OneTimeWorkRequestBuilder
+import androidx.work.WorkInfo
 import androidx.work.WorkManager
 import androidx.work.WorkerParameters
 import androidx.work.workDataOf
+import com.google.android.apps.muzei.api.internal.shuffledIndices
 import com.google.android.apps.muzei.api.provider.Artwork
 import com.google.android.apps.muzei.api.provider.ProviderClient
 import com.google.android.apps.muzei.api.provider.ProviderContract
 import com.google.android.apps.muzei.gallery.BuildConfig.GALLERY_ART_AUTHORITY
 import com.google.android.apps.muzei.util.getString
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withContext
+import java.io.BufferedInputStream
 import java.io.FileNotFoundException
 import java.io.IOException
 import java.text.ParseException
 import java.text.SimpleDateFormat
-import java.util.LinkedList
 import java.util.Random
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
 
 class GalleryScanWorker(
         context: Context,
@@ -61,15 +73,27 @@ class GalleryScanWorker(
         private const val TAG = "GalleryScanWorker"
         private const val INITIAL_SCAN_TAG = "initialScan"
         private const val INITIAL_SCAN_ID = "id"
+        private const val MAX_PARALLEL_QUERIES = 4
+        private const val MAX_PARALLEL_METADATA_READS = 4
+        private const val METADATA_BATCH_SIZE = 50
+        private const val SCAN_TAG = "scan"
+        private const val PROGRESS_PROCESSED = "processed"
+        private const val PROGRESS_TOTAL = "total"
+        private const val PROGRESS_PER_CHOSEN_PHOTO = 100
 
-        @SuppressLint("SimpleDateFormat")
-        private val EXIF_DATE_FORMAT = SimpleDateFormat("yyyy:MM:dd HH:mm:ss")
+        private const val EXIF_DATE_PATTERN = "yyyy:MM:dd HH:mm:ss"
+        /**
+         * The number of geohash characters identifying each cell of reverse geocoded
+         * locations. 7 characters results in cells of roughly 150m by 150m.
+         */
+        private const val GEOHASH_PRECISION = 7
         private val OMIT_COUNTRY_CODES = hashSetOf("US")
 
         fun enqueueInitialScan(context: Context, ids: List<Long>) {
             val workManager = WorkManager.getInstance(context)
             workManager.enqueue(ids.map { id ->
                 OneTimeWorkRequestBuilder<GalleryScanWorker>()
+                        .addTag(SCAN_TAG)
                         .addTag(INITIAL_SCAN_TAG)
                         .setInputData(workDataOf(INITIAL_SCAN_ID to id))
                         .build()
@@ -81,14 +105,77 @@ class GalleryScanWorker(
             workManager.enqueueUniqueWork("rescan",
                     ExistingWorkPolicy.REPLACE,
                     OneTimeWorkRequestBuilder<GalleryScanWorker>()
+                            .addTag(SCAN_TAG)
                             .build())
         }
+
+        /**
+         * Get the [WorkInfo] of every scan, for use with [getScanProgress]
+         */
+        internal fun getScanWorkInfos(context: Context) =
+                WorkManager.getInstance(context).getWorkInfosByTagLiveData(SCAN_TAG)
+
+        /**
+         * Get the combined progress, as a percentage, of all of the running scans in
+         * [workInfos], or null if there are no running scans.
+         */
+        internal fun getScanProgress(workInfos: List<WorkInfo>): Int? {
+            val runningWorkInfos = workInfos.filter { it.state == WorkInfo.State.RUNNING }
+            if (runningWorkInfos.isEmpty()) {
+                return null
+            }
+            val processed = runningWorkInfos.sumOf { it.progress.getInt(PROGRESS_PROCESSED, 0) }
+            val total = runningWorkInfos.sumOf { it.progress.getInt(PROGRESS_TOTAL, 0) }
+            return if (total > 0) processed * 100 / total else 0
+        }
     }
 
-    private val geocoder by lazy {
-        Geocoder(applicationContext)
+    private val reverseGeocoder by lazy {
+        val geocoder = Geocoder(applicationContext)
+        val geocodeDao = GalleryDatabase.getInstance(applicationContext).geocodeDao()
+        ReverseGeocoder(geocodeDao, GEOHASH_PRECISION) { latitude, longitude ->
+            if (!Geocoder.isPresent()) {
+                throw IOException("No Geocoder available")
+            }
+            geocoder.getFromLocation(latitude, longitude, 1)?.firstOrNull()?.run {
+                val locality = locality
+                val adminArea = adminArea
+                val countryCode = countryCode
+                val sb = StringBuilder()
+                if (!locality.isNullOrEmpty()) {
+                    sb.append(locality)
+                }
+                if (!adminArea.isNullOrEmpty()) {
+                    if (sb.isNotEmpty()) {
+                        sb.append(", ")
+                    }
+                    sb.append(adminArea)
+                }
+                if (!countryCode.isNullOrEmpty() && !OMIT_COUNTRY_CODES.contains(countryCode)) {
+                    if (sb.isNotEmpty()) {
+                        sb.append(", ")
+                    }
+                    sb.append(countryCode)
+                }
+                sb.toString()
+            }
+        }
     }
 
+    /**
+     * Limits the number of images having their metadata read at once
+     */
+    private val metadataSemaphore = Semaphore(MAX_PARALLEL_METADATA_READS)
+
+    /**
+     * Progress is reported in one phase per chosen photo scanned by this worker, each
+     * split by the images added from that chosen photo. A tree's images are only known
+     * once it has been listed, so counting images across every tree would let the
+     * reported progress go backwards.
+     */
+    private var chosenPhotoCount = 1
+    private var scannedChosenPhotos = 0
+
     override suspend fun doWork(): Result {
         val providerClient = ProviderContract.getProviderClient(
                 applicationContext, GALLERY_ART_AUTHORITY)
@@ -110,8 +197,10 @@ class GalleryScanWorker(
                 .chosenPhotosBlocking
         val numChosenUris = chosenPhotos.size
         if (numChosenUris > 0) {
+            chosenPhotoCount = numChosenUris
             for (chosenPhoto in chosenPhotos) {
                 scanChosenPhoto(providerClient, chosenPhoto)
+                scannedChosenPhotos++
             }
             deleteMediaUris(providerClient)
             return Result.success()
@@ -167,40 +256,54 @@ class GalleryScanWorker(
     @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
     private suspend fun addTreeUri(providerClient: ProviderClient, chosenPhoto: ChosenPhoto) {
         val treeUri = chosenPhoto.uri
-        val allImages = mutableListOf<Uri>()
+        val snapshotDao = GalleryDatabase.getInstance(applicationContext)
+                .directorySnapshotDao()
         try {
-            addAllImagesFromTree(allImages, treeUri)
+            // Only trust the snapshots if the artwork they describe still exists
+            val previousSnapshots = if (hasArtwork(providerClient, treeUri)) {
+                snapshotDao.snapshotsForTree(treeUri).associateBy { it.documentId }
+            } else {
+                emptyMap()
+            }
+            val scan = TreeScan(treeUri, previousSnapshots)
+            withContext(Dispatchers.IO) {
+                scanDirectory(scan, DocumentsContract.getTreeDocumentId(treeUri), null)
+            }
+            val removedDocumentIds = previousSnapshots.keys - scan.snapshots.keys
+            removedDocumentIds.forEach { documentId ->
+                scan.removedImages += previousSnapshots.getValue(documentId).images
+            }
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Scanned $treeUri: ${scan.changedSnapshots.size} of " +
+                        "${scan.snapshots.size} directories changed, " +
+                        "${scan.addedImages.size} images added, " +
+                        "${scan.removedImages.size} images removed")
+            }
             // Shuffle all the images to give a random initial load order
-            allImages.shuffle()
-            val currentTime = System.currentTimeMillis()
-            val addedArtwork = providerClient.addArtwork(allImages.map { uri ->
-                createArtwork(treeUri, uri)
-            })
-            val deleteOperations = ArrayList<ContentProviderOperation>()
-            applicationContext.contentResolver.query(
-                    providerClient.contentUri,
-                    arrayOf(BaseColumns._ID),
-                    "${ProviderContract.Artwork.METADATA}=? AND " +
-                            "${ProviderContract.Artwork.DATE_MODIFIED}<?",
-                    arrayOf(treeUri.toString(), currentTime.toString()),
-                    null)?.use { data ->
-                while (data.moveToNext()) {
-                    val artworkUri = ContentUris.withAppendedId(providerClient.contentUri,
-                            data.getLong(0))
-                    if (!addedArtwork.contains(artworkUri)) {
-                        deleteOperations += ContentProviderOperation
-                                .newDelete(artworkUri)
-                                .build()
-                    }
+            val addedImages = scan.addedImages.map { documentId ->
+                DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId)
+            }.shuffled()
+            val addedArtwork = if (previousSnapshots.isEmpty()) {
+                // Without any snapshots, replace all of the existing artwork
+                replaceArtwork(providerClient, treeUri, addedImages)
+            } else {
+                addArtwork(providerClient, treeUri, addedImages).also {
+                    removeArtwork(providerClient, treeUri, scan.removedImages)
                 }
             }
-            if (deleteOperations.isNotEmpty()) {
-                try {
-                    applicationContext.contentResolver.applyBatch(GALLERY_ART_AUTHORITY,
-                            deleteOperations)
-                } catch(e: Exception) {
-                    Log.i(TAG, "Error removing deleted artwork", e)
+            if (addedArtwork.size < addedImages.size) {
+                // Saving the snapshots would mean the images that failed to be
+                // added would be skipped by every future scan, so leave the old
+                // snapshots in place to try adding them again next time
+                Log.w(TAG, "Only added ${addedArtwork.size} of ${addedImages.size} " +
+                        "images from $treeUri, not saving directory snapshots")
+                return
+            }
+            withContext(NonCancellable) {
+                if (previousSnapshots.isEmpty()) {
+                    snapshotDao.deleteForTree(treeUri)
                 }
+                snapshotDao.update(treeUri, scan.changedSnapshots.toList(), removedDocumentIds)
             }
         } catch (e: SecurityException) {
             Log.w(TAG, "Unable to load images from $treeUri, deleting row", e)
@@ -208,54 +311,250 @@ class GalleryScanWorker(
         } catch (e: FileNotFoundException) {
             Log.w(TAG, "Unable to load images from $treeUri, deleting row", e)
             deleteChosenPhoto(chosenPhoto)
+        } catch (e: CancellationException) {
+            throw e
         } catch (e: Exception) {
             // Could be anything: NullPointerException, IllegalArgumentException, etc.
             Log.i(TAG, "Unable to load images from $treeUri", e)
         }
     }
 
+    private fun hasArtwork(providerClient: ProviderClient, treeUri: Uri): Boolean {
+        return applicationContext.contentResolver.query(
+                providerClient.contentUri,
+                arrayOf(BaseColumns._ID),
+                "${ProviderContract.Artwork.METADATA}=?",
+                arrayOf(treeUri.toString()),
+                null)?.use { data -> data.count > 0 } ?: false
+    }
+
+    /**
+     * Add artwork for all of the [images] in the tree, removing any other artwork
+     * previously added from the tree.
+     *
+     * @return The URIs of the added artwork
+     */
+    private suspend fun replaceArtwork(
+            providerClient: ProviderClient,
+            treeUri: Uri,
+            images: List<Uri>
+    ): List<Uri> {
+        val currentTime = System.currentTimeMillis()
+        val addedArtwork = addArtwork(providerClient, treeUri, images)
+        if (addedArtwork.size < images.size) {
+            // Keep the existing artwork rather than replacing it with a partial set
+            return addedArtwork
+        }
+        val deleteOperations = ArrayList<ContentProviderOperation>()
+        applicationContext.contentResolver.query(
+                providerClient.contentUri,
+                arrayOf(BaseColumns._ID),
+                "${ProviderContract.Artwork.METADATA}=? AND " +
+                        "${ProviderContract.Artwork.DATE_MODIFIED}<?",
+                arrayOf(treeUri.toString(), currentTime.toString()),
+                null)?.use { data ->
+            while (data.moveToNext()) {
+                val artworkUri = ContentUris.withAppendedId(providerClient.contentUri,
+                        data.getLong(0))
+                if (!addedArtwork.contains(artworkUri)) {
+                    deleteOperations += ContentProviderOperation
+                            .newDelete(artworkUri)
+                            .build()
+                }
+            }
+        }
+        applyDeleteOperations(deleteOperations)
+        return addedArtwork
+    }
+
+    /**
+     * Remove the artwork for the images in the tree with the given document ids
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private fun removeArtwork(
+            providerClient: ProviderClient,
+            treeUri: Uri,
+            documentIds: Collection<String>
+    ) {
+        val deleteOperations = ArrayList<ContentProviderOperation>()
+        documentIds.forEach { documentId ->
+            val imageUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId)
+            deleteOperations += ContentProviderOperation
+                    .newDelete(providerClient.contentUri)
+                    .withSelection("${ProviderContract.Artwork.METADATA}=? AND " +
+                            "${ProviderContract.Artwork.TOKEN}=?",
+                            arrayOf(treeUri.toString(), imageUri.toString()))
+                    .build()
+        }
+        applyDeleteOperations(deleteOperations)
+    }
+
+    private fun applyDeleteOperations(deleteOperations: ArrayList<ContentProviderOperation>) {
+        if (deleteOperations.isNotEmpty()) {
+            try {
+                applicationContext.contentResolver.applyBatch(GALLERY_ART_AUTHORITY,
+                        deleteOperations)
+            } catch(e: Exception) {
+                Log.i(TAG, "Error removing deleted artwork", e)
+            }
+        }
+    }
+
     private suspend fun deleteChosenPhoto(chosenPhoto: ChosenPhoto) = withContext(NonCancellable) {
         GalleryDatabase.getInstance(applicationContext)
                 .chosenPhotoDao()
                 .delete(applicationContext, listOf(chosenPhoto.id))
     }
 
+    /**
+     * The state of a single scan of a tree URI, comparing each directory against the
+     * [previousSnapshots] from the last scan
+     */
+    private class TreeScan(
+            val treeUri: Uri,
+            val previousSnapshots: Map<String, DirectorySnapshot>
+    ) {
+        /**
+         * Limits the number of directories being queried at once
+         */
+        val querySemaphore = Semaphore(MAX_PARALLEL_QUERIES)
+        val snapshots = ConcurrentHashMap<String, DirectorySnapshot>()
+        val changedSnapshots = ConcurrentLinkedQueue<DirectorySnapshot>()
+        val addedImages = ConcurrentLinkedQueue<String>()
+        val removedImages = ConcurrentLinkedQueue<String>()
+    }
+
+    /**
+     * The contents of a directory, as returned by a child documents query
+     */
+    private class DirectoryListing(
+            val childDirectories: Map<String, Long?>,
+            val images: List<String>
+    )
+
+    /**
+     * Scan the directory with the given [documentId] and all of its subdirectories.
+     * Directories whose [lastModified] time matches their previous snapshot reuse that
+     * snapshot rather than listing their children again. Subdirectories are scanned
+     * in parallel, limited by the [TreeScan.querySemaphore].
+     */
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private suspend fun scanDirectory(
+            scan: TreeScan,
+            documentId: String,
+            knownLastModified: Long?
+    ): Unit = coroutineScope {
+        val lastModified = knownLastModified ?: scan.querySemaphore.withPermit {
+            queryLastModified(scan.treeUri, documentId)
+        }
+        val previous = scan.previousSnapshots[documentId]
+        val childDirectories = if (previous != null && lastModified != null &&
+                previous.lastModified == lastModified) {
+            if (scan.snapshots.putIfAbsent(documentId, previous) != null) {
+                // Already scanned
+                return@coroutineScope
+            }
+            // The directory is unchanged, but its subdirectories may have changed
+            previous.childDirectories.associateWith { null }
+        } else {
+            val listing = scan.querySemaphore.withPermit {
+                listDirectory(scan.treeUri, documentId)
+            }
+            if (listing == null) {
+                // Keep any previous snapshot so that the directory is listed again
+                // on the next scan rather than treating all of its images as removed
+                val snapshot = previous ?: DirectorySnapshot(scan.treeUri, documentId,
+                        null, emptyList(), emptyList())
+                if (scan.snapshots.putIfAbsent(documentId, snapshot) != null) {
+                    // Already scanned
+                    return@coroutineScope
+                }
+                snapshot.childDirectories.associateWith { null }
+            } else {
+                val snapshot = DirectorySnapshot(scan.treeUri, documentId, lastModified,
+                        listing.childDirectories.keys.toList(), listing.images)
+                if (scan.snapshots.putIfAbsent(documentId, snapshot) != null) {
+                    // Already scanned
+                    return@coroutineScope
+                }
+                scan.changedSnapshots += snapshot
+                val previousImages = previous?.images?.toHashSet() ?: emptySet()
+                val images = listing.images.toHashSet()
+                scan.addedImages += listing.images.filter { it !in previousImages }
+                scan.removedImages += previousImages.filter { it !in images }
+                listing.childDirectories
+            }
+        }
+        childDirectories.forEach { (childDocumentId, childLastModified) ->
+            launch {
+                scanDirectory(scan, childDocumentId, childLastModified)
+            }
+        }
+    }
+
     @SuppressLint("Recycle")
     @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
-    private fun addAllImagesFromTree(
-            images: MutableList<Uri>,
-            treeUri: Uri
-    ) {
-        val directories = LinkedList<String>()
-        directories.add(DocumentsContract.getTreeDocumentId(treeUri))
-        while (!directories.isEmpty()) {
-            val parentDocumentId = directories.poll()
-            val childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
-                    treeUri, parentDocumentId)
-            try {
-                applicationContext.contentResolver.query(childrenUri,
-                        arrayOf(DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_MIME_TYPE),
-                        null, null, null)?.use { children ->
-                    while (children.moveToNext()) {
-                        val documentId = children.getString(
-                                DocumentsContract.Document.COLUMN_DOCUMENT_ID)
-                        val mimeType = children.getString(
-                                DocumentsContract.Document.COLUMN_MIME_TYPE)
-                        if (DocumentsContract.Document.MIME_TYPE_DIR == mimeType) {
-                            directories.add(documentId)
-                        } else if (mimeType.startsWith("image/")) {
-                            // Add images to the list
-                            images.add(DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId))
+    private fun queryLastModified(treeUri: Uri, documentId: String): Long? {
+        val documentUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId)
+        return try {
+            applicationContext.contentResolver.query(documentUri,
+                    arrayOf(DocumentsContract.Document.COLUMN_LAST_MODIFIED),
+                    null, null, null)?.use { data ->
+                if (data.moveToFirst() && !data.isNull(0)) data.getLong(0) else null
+            }
+        } catch (e: SecurityException) {
+            null
+        } catch (e: Exception) {
+            // Could be anything: NullPointerException, IllegalArgumentException, etc.
+            Log.i(TAG, "Unable to query $documentUri", e)
+            null
+        }
+    }
+
+    /**
+     * List the child directories (with their last modified time) and images of the
+     * directory with the given [documentId], returning null if it could not be listed.
+     */
+    @SuppressLint("Recycle")
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private fun listDirectory(treeUri: Uri, documentId: String): DirectoryListing? {
+        val childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                treeUri, documentId)
+        try {
+            return applicationContext.contentResolver.query(childrenUri,
+                    arrayOf(DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                            DocumentsContract.Document.COLUMN_MIME_TYPE,
+                            DocumentsContract.Document.COLUMN_LAST_MODIFIED),
+                    null, null, null)?.use { children ->
+                val childDirectories = HashMap<String, Long?>()
+                val images = ArrayList<String>()
+                val lastModifiedColumn = children.getColumnIndex(
+                        DocumentsContract.Document.COLUMN_LAST_MODIFIED)
+                while (children.moveToNext()) {
+                    val childDocumentId = children.getString(
+                            DocumentsContract.Document.COLUMN_DOCUMENT_ID)
+                    val mimeType = children.getString(
+                            DocumentsContract.Document.COLUMN_MIME_TYPE)
+                    if (DocumentsContract.Document.MIME_TYPE_DIR == mimeType) {
+                        childDirectories[childDocumentId] = if (lastModifiedColumn != -1 &&
+                                !children.isNull(lastModifiedColumn)) {
+                            children.getLong(lastModifiedColumn)
+                        } else {
+                            null
                         }
+                    } else if (mimeType.startsWith("image/")) {
+                        images.add(childDocumentId)
                     }
                 }
-            } catch (e: SecurityException) {
-                // No longer can read this URI, which means no children from this URI
-            } catch (e: Exception) {
-                // Could be anything: NullPointerException, IllegalArgumentException, etc.
-                Log.i(TAG, "Unable to load images from $treeUri", e)
+                DirectoryListing(childDirectories, images)
             }
+        } catch (e: SecurityException) {
+            // No longer can read this URI, which means no children from this URI
+        } catch (e: Exception) {
+            // Could be anything: NullPointerException, IllegalArgumentException, etc.
+            Log.i(TAG, "Unable to load images from $treeUri", e)
         }
+        return null
     }
 
     @SuppressLint("Recycle")
@@ -277,13 +576,7 @@ class GalleryScanWorker(
             }
             val lastToken = providerClient.lastAddedArtwork?.token
 
-            val random = Random()
-            val randomSequence = generateSequence {
-                random.nextInt(data.count)
-            }.distinct().take(data.count)
-            val iterator = randomSequence.iterator()
-            while (iterator.hasNext()) {
-                val position = iterator.next()
+            for (position in Random().shuffledIndices(count)) {
                 if (data.moveToPosition(position)) {
                     val imageUri = ContentUris.withAppendedId(
                             MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
@@ -319,8 +612,15 @@ class GalleryScanWorker(
             imageUri: Uri = baseUri,
             publicWebUri: Uri = imageUri,
             metadataUri: Uri = imageUri
+    ) = createArtwork(baseUri, imageUri, publicWebUri,
+            ensureMetadataExists(listOf(metadataUri)).getValue(metadataUri))
+
+    private fun createArtwork(
+            baseUri: Uri,
+            imageUri: Uri,
+            publicWebUri: Uri,
+            imageMetadata: Metadata
     ): Artwork {
-        val imageMetadata = ensureMetadataExists(metadataUri)
         val date = imageMetadata.date
 
         return Artwork(
@@ -342,60 +642,96 @@ class GalleryScanWorker(
             })
     }
 
-    private suspend fun ensureMetadataExists(imageUri: Uri): Metadata {
+    /**
+     * Add artwork for each of the [imageUris] in batches, reporting the progress
+     * of the current chosen photo's phase after each batch.
+     *
+     * @return The URIs of the added artwork
+     */
+    private suspend fun addArtwork(
+            providerClient: ProviderClient,
+            baseUri: Uri,
+            imageUris: List<Uri>
+    ): List<Uri> {
+        val addedArtwork = ArrayList<Uri>()
+        var processedCount = 0
+        imageUris.chunked(METADATA_BATCH_SIZE).forEach { batch ->
+            val metadata = ensureMetadataExists(batch)
+            addedArtwork += providerClient.addArtwork(batch.map { uri ->
+                createArtwork(baseUri, uri, uri, metadata.getValue(uri))
+            })
+            processedCount += batch.size
+            val processed = scannedChosenPhotos * PROGRESS_PER_CHOSEN_PHOTO +
+                    processedCount * PROGRESS_PER_CHOSEN_PHOTO / imageUris.size
+            setProgress(workDataOf(
+                    PROGRESS_PROCESSED to processed,
+                    PROGRESS_TOTAL to chosenPhotoCount * PROGRESS_PER_CHOSEN_PHOTO))
+        }
+        return addedArtwork
+    }
+
+    /**
+     * Get the metadata for each of the [imageUris], reading the metadata of images
+     * without cached metadata in parallel and caching it in a single transaction.
+     */
+    private suspend fun ensureMetadataExists(imageUris: List<Uri>): Map<Uri, Metadata> {
         val metadataDao = GalleryDatabase.getInstance(applicationContext)
                 .metadataDao()
-        val existingMetadata = metadataDao.metadataForUri(imageUri)
-        if (existingMetadata != null) {
-            return existingMetadata
+        val metadata = metadataDao.metadataForUris(imageUris)
+                .associateByTo(HashMap()) { it.uri }
+        val missingUris = imageUris.filter { it !in metadata }.distinct()
+        if (missingUris.isEmpty()) {
+            return metadata
         }
         // No cached metadata or it's stale, need to pull it separately using Exif
+        val readMetadata = withContext(Dispatchers.IO) {
+            missingUris.map { imageUri ->
+                async {
+                    metadataSemaphore.withPermit {
+                        readMetadata(imageUri)
+                    }
+                }
+            }.awaitAll().filterNotNull()
+        }
+        metadataDao.insertAll(readMetadata)
+        readMetadata.associateByTo(metadata) { it.uri }
+        // Images we were unable to read still get (empty) metadata
+        missingUris.forEach { imageUri ->
+            metadata.getOrPut(imageUri) { Metadata(imageUri) }
+        }
+        return metadata
+    }
+
+    /**
+     * Read the metadata of the given image from its Exif data, returning null
+     * if the image could not be read or its location could not be looked up.
+     */
+    @SuppressLint("SimpleDateFormat")
+    private fun readMetadata(imageUri: Uri): Metadata? {
         val metadata = Metadata(imageUri)
 
         try {
-            applicationContext.contentResolver.openInputStream(imageUri)?.use { input ->
-                val exifInterface = ExifInterface(input)
-                val dateString = exifInterface.getAttribute(ExifInterface.TAG_DATETIME)
-                if (!dateString.isNullOrEmpty()) {
-                    metadata.date = EXIF_DATE_FORMAT.parse(dateString)
-                }
-
-                exifInterface.latLong?.apply {
-                    // Reverse geocode
-                    val addresses = try {
-                        geocoder.getFromLocation(this[0], this[1], 1)
-                    } catch (e: Exception) {
-                        Log.w(TAG, "Invalid latitude/longitude, skipping location metadata", e)
-                        null
-                    }
+            val exifInterface = openExifInterface(imageUri) ?: return null
+            val dateString = exifInterface.getAttribute(ExifInterface.TAG_DATETIME)
+            if (!dateString.isNullOrEmpty()) {
+                // SimpleDateFormat is not thread safe, so use a new instance each time
+                metadata.date = SimpleDateFormat(EXIF_DATE_PATTERN).parse(dateString)
+            }
 
-                    addresses?.firstOrNull()?.run {
-                        val locality = locality
-                        val adminArea = adminArea
-                        val countryCode = countryCode
-                        val sb = StringBuilder()
-                        if (!locality.isNullOrEmpty()) {
-                            sb.append(locality)
-                        }
-                        if (!adminArea.isNullOrEmpty()) {
-                            if (sb.isNotEmpty()) {
-                                sb.append(", ")
-                            }
-                            sb.append(adminArea)
-                        }
-                        if (!countryCode.isNullOrEmpty() && !OMIT_COUNTRY_CODES.contains(countryCode)) {
-                            if (sb.isNotEmpty()) {
-                                sb.append(", ")
-                            }
-                            sb.append(countryCode)
-                        }
-                        metadata.location = sb.toString()
-                    }
+            exifInterface.latLong?.apply {
+                // Reverse geocode
+                metadata.location = try {
+                    reverseGeocoder.getLocation(this[0], this[1])
+                } catch (e: IllegalArgumentException) {
+                    Log.w(TAG, "Invalid latitude/longitude, skipping location metadata", e)
+                    null
+                } catch (e: Exception) {
+                    // Don't cache metadata without the location so the next scan retries
+                    Log.w(TAG, "Couldn't reverse geocode image location", e)
+                    return null
                 }
-
-                metadataDao.insert(metadata)
-                return metadata
             }
+            return metadata
         } catch (e: ParseException) {
             Log.w(TAG, "Couldn't read image metadata", e)
         } catch (e: IOException) {
@@ -412,6 +748,24 @@ class GalleryScanWorker(
             Log.w(TAG, "Couldn't read image metadata", e)
         }
 
-        return metadata
+        return null
+    }
+
+    /**
+     * Read the Exif data of the given image. Where possible, this uses a file descriptor
+     * so that [ExifInterface] can seek directly to the Exif data rather than reading
+     * through the image data that precedes it.
+     */
+    @Throws(IOException::class)
+    private fun openExifInterface(imageUri: Uri): ExifInterface? {
+        val contentResolver = applicationContext.contentResolver
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return contentResolver.openFileDescriptor(imageUri, "r")?.use { pfd ->
+                ExifInterface(pfd.fileDescriptor)
+            }
+        }
+        return contentResolver.openInputStream(imageUri)?.use { input ->
+            ExifInterface(BufferedInputStream(input))
+        }
     }
-}
\ No newline at end of file
+}
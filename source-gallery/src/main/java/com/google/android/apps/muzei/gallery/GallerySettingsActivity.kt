@@ -300,6 +300,14 @@ class GallerySettingsActivity : AppCompatActivity(),
         }.distinctUntilChanged().onEach {
             invalidateOptionsMenu()
         }.launchWhenStartedIn(this)
+        viewModel.scanProgress.onEach { progress ->
+            if (progress != null) {
+                binding.scanProgress.setProgressCompat(progress, true)
+                binding.scanProgress.show()
+            } else {
+                binding.scanProgress.hide()
+            }
+        }.launchWhenStartedIn(this)
         GalleryScanWorker.enqueueRescan(this)
     }
 
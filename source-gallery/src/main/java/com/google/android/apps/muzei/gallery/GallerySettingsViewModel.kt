@@ -23,6 +23,7 @@ import android.content.Intent
 import android.content.IntentFilter
 import android.content.pm.PackageManager
 import androidx.lifecycle.AndroidViewModel
+import androidx.lifecycle.asFlow
 import androidx.lifecycle.viewModelScope
 import androidx.paging.Pager
 import androidx.paging.PagingConfig
@@ -32,6 +33,7 @@ import kotlinx.coroutines.channels.awaitClose
 import kotlinx.coroutines.channels.sendBlocking
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.stateIn
 
 /**
@@ -44,6 +46,13 @@ class GallerySettingsViewModel(application: Application) : AndroidViewModel(appl
         GalleryDatabase.getInstance(application).chosenPhotoDao().chosenPhotosPaged
     }.flow.cachedIn(viewModelScope)
 
+    /**
+     * The progress, as a percentage, of any running scans or null if there are none
+     */
+    internal val scanProgress = GalleryScanWorker.getScanWorkInfos(application).asFlow().map {
+        GalleryScanWorker.getScanProgress(it)
+    }.stateIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), null)
+
     internal val getContentActivityInfoList = callbackFlow {
         val refreshList = {
             val intent = Intent(Intent.ACTION_GET_CONTENT).apply {
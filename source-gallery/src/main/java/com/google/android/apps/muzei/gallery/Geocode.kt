@@ -0,0 +1,31 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.apps.muzei.gallery
+
+import androidx.room.Entity
+import androidx.room.PrimaryKey
+
+/**
+ * Entity representing the cached reverse geocoded location of a geohash cell in Room
+ */
+@Entity(tableName = "geocode_cache")
+internal data class Geocode(
+        @PrimaryKey
+        val cell: String,
+        val location: String?
+)
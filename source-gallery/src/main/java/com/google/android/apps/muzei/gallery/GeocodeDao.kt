@@ -0,0 +1,35 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.apps.muzei.gallery
+
+import androidx.room.Dao
+import androidx.room.Insert
+import androidx.room.OnConflictStrategy
+import androidx.room.Query
+
+/**
+ * Dao for [Geocode]
+ */
+@Dao
+internal interface GeocodeDao {
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    fun insert(geocode: Geocode)
+
+    @Query("SELECT * FROM geocode_cache WHERE cell = :cell")
+    fun geocodeForCell(cell: String): Geocode?
+}
@@ -32,7 +32,14 @@ internal interface MetadataDao {
     @Insert(onConflict = OnConflictStrategy.REPLACE)
     suspend fun insert(metadata: Metadata)
 
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insertAll(metadata: List<Metadata>)
+
     @TypeConverters(UriTypeConverter::class)
     @Query("SELECT * FROM metadata_cache WHERE uri = :uri")
     suspend fun metadataForUri(uri: Uri): Metadata?
+
+    @TypeConverters(UriTypeConverter::class)
+    @Query("SELECT * FROM metadata_cache WHERE uri IN (:uris)")
+    suspend fun metadataForUris(uris: List<Uri>): List<Metadata>
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.gallery
+
+import com.google.android.apps.muzei.api.internal.KeyedLock
+
+/**
+ * Reverse geocodes locations via [lookUpLocation], caching the result for each geohash
+ * cell of the given [precision] so that photos taken near one another only result in a
+ * single lookup. Concurrent requests for the same cell wait for a single lookup.
+ */
+internal class ReverseGeocoder(
+        private val geocodeDao: GeocodeDao,
+        private val precision: Int,
+        private val lookUpLocation: (latitude: Double, longitude: Double) -> String?
+) {
+
+    companion object {
+        private const val BASE_32 = "0123456789bcdefghjkmnpqrstuvwxyz"
+
+        /**
+         * Encode the given location as a geohash with [precision] characters
+         */
+        internal fun encodeGeohash(latitude: Double, longitude: Double, precision: Int): String {
+            var minLatitude = -90.0
+            var maxLatitude = 90.0
+            var minLongitude = -180.0
+            var maxLongitude = 180.0
+            val geohash = StringBuilder(precision)
+            var isLongitudeBit = true
+            var bitCount = 0
+            var character = 0
+            while (geohash.length < precision) {
+                character = character shl 1
+                if (isLongitudeBit) {
+                    val mid = (minLongitude + maxLongitude) / 2
+                    if (longitude >= mid) {
+                        character = character or 1
+                        minLongitude = mid
+                    } else {
+                        maxLongitude = mid
+                    }
+                } else {
+                    val mid = (minLatitude + maxLatitude) / 2
+                    if (latitude >= mid) {
+                        character = character or 1
+                        minLatitude = mid
+                    } else {
+                        maxLatitude = mid
+                    }
+                }
+                isLongitudeBit = !isLongitudeBit
+                if (++bitCount == 5) {
+                    geohash.append(BASE_32[character])
+                    bitCount = 0
+                    character = 0
+                }
+            }
+            return geohash.toString()
+        }
+    }
+
+    /**
+     * Held while looking up each cell so that concurrent requests
+     * for the same cell wait for a single lookup
+     */
+    private val lookupLock = KeyedLock<String>()
+
+    /**
+     * Get the location for the given latitude and longitude, using the cached location
+     * of its cell if available.
+     *
+     * @throws Exception any exception thrown by [lookUpLocation], in which case nothing
+     * is cached for the cell
+     */
+    fun getLocation(latitude: Double, longitude: Double): String? {
+        val cell = encodeGeohash(latitude, longitude, precision)
+        lookupLock.withLock(cell) {
+            geocodeDao.geocodeForCell(cell)?.let { geocode ->
+                return geocode.location
+            }
+            val location = lookUpLocation(latitude, longitude)
+            geocodeDao.insert(Geocode(cell, location))
+            return location
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.android.apps.muzei.gallery.converter
+
+import androidx.room.TypeConverter
+import org.json.JSONArray
+
+/**
+ * Converts a [List] of [String]s into and from a persisted value
+ */
+object StringListTypeConverter {
+    @TypeConverter
+    fun fromString(listString: String?): List<String>? {
+        if (listString == null) {
+            return null
+        }
+        val array = JSONArray(listString)
+        return List(array.length()) { index -> array.getString(index) }
+    }
+
+    @TypeConverter
+    fun listToString(list: List<String>?): String? {
+        return list?.let { JSONArray(it).toString() }
+    }
+}
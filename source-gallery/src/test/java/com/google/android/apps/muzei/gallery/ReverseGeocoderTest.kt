@@ -0,0 +1,104 @@
+/*
+ * Copyright 2021 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.apps.muzei.gallery
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.fail
+import org.junit.Test
+import java.io.IOException
+
+/**
+ * Tests for [ReverseGeocoder], using an in memory [GeocodeDao] and a fake geocoder
+ * that counts its lookups.
+ */
+class ReverseGeocoderTest {
+
+    private class FakeGeocodeDao : GeocodeDao {
+        val geocodes = HashMap<String, Geocode>()
+
+        override fun insert(geocode: Geocode) {
+            geocodes[geocode.cell] = geocode
+        }
+
+        override fun geocodeForCell(cell: String) = geocodes[cell]
+    }
+
+    private val geocodeDao = FakeGeocodeDao()
+    private var lookups = 0
+    private var fakeGeocoder: (latitude: Double, longitude: Double) -> String? = { _, _ ->
+        "Location $lookups"
+    }
+    private val reverseGeocoder = ReverseGeocoder(geocodeDao, 7) { latitude, longitude ->
+        lookups++
+        fakeGeocoder(latitude, longitude)
+    }
+
+    @Test
+    fun encodeGeohash() {
+        assertEquals("u4pruydqqvj",
+                ReverseGeocoder.encodeGeohash(57.64911, 10.40744, 11))
+        assertEquals("u4pruyd",
+                ReverseGeocoder.encodeGeohash(57.64911, 10.40744, 7))
+    }
+
+    @Test
+    fun cacheMissLooksUpLocation() {
+        assertEquals("Location 1", reverseGeocoder.getLocation(57.64911, 10.40744))
+        assertEquals(1, lookups)
+        assertEquals("Location 1", geocodeDao.geocodes["u4pruyd"]?.location)
+    }
+
+    @Test
+    fun cacheHitWithinTheSameCell() {
+        reverseGeocoder.getLocation(57.64911, 10.40744)
+        // A few meters away, in the same cell
+        assertEquals("Location 1", reverseGeocoder.getLocation(57.64915, 10.40750))
+        assertEquals(1, lookups)
+    }
+
+    @Test
+    fun differentCellsLookUpSeparately() {
+        reverseGeocoder.getLocation(57.64911, 10.40744)
+        assertEquals("Location 2", reverseGeocoder.getLocation(48.85837, 2.29448))
+        assertEquals(2, lookups)
+    }
+
+    @Test
+    fun nullResultIsCached() {
+        fakeGeocoder = { _, _ -> null }
+        assertNull(reverseGeocoder.getLocation(57.64911, 10.40744))
+        assertNull(reverseGeocoder.getLocation(57.64911, 10.40744))
+        assertEquals(1, lookups)
+    }
+
+    @Test
+    fun failedLookupIsNotCached() {
+        fakeGeocoder = { _, _ -> throw IOException("Network unavailable") }
+        try {
+            reverseGeocoder.getLocation(57.64911, 10.40744)
+            fail("Expected the lookup failure to be thrown")
+        } catch (e: IOException) {
+            // Expected
+        }
+        assertNull(geocodeDao.geocodeForCell("u4pruyd"))
+
+        fakeGeocoder = { _, _ -> "Location $lookups" }
+        assertEquals("Location 2", reverseGeocoder.getLocation(57.64911, 10.40744))
+        assertEquals(2, lookups)
+    }
+}
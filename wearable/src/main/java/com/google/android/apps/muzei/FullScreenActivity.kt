@@ -22,7 +22,7 @@ import androidx.fragment.app.FragmentActivity
 import androidx.lifecycle.lifecycleScope
 import androidx.wear.ambient.AmbientModeSupport
 import com.google.android.apps.muzei.render.ImageLoader
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import com.google.firebase.analytics.ktx.analytics
 import com.google.firebase.ktx.Firebase
@@ -60,8 +60,8 @@ class FullScreenActivity : FragmentActivity(),
             binding.loadingIndicator.isVisible = true
         }
 
-        val database = MuzeiDatabase.getInstance(this@FullScreenActivity)
-        database.artworkDao().currentArtwork.filterNotNull().onEach { artwork ->
+        val currentArtworkRepository = CurrentArtworkRepository.getInstance(this@FullScreenActivity)
+        currentArtworkRepository.currentArtwork.filterNotNull().onEach { artwork ->
             val image = ImageLoader.decode(
                     contentResolver, artwork.contentUri)
             showLoadingIndicator?.cancel()
@@ -33,7 +33,7 @@ import androidx.recyclerview.widget.RecyclerView
 import androidx.wear.widget.RoundedDrawable
 import coil.load
 import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import kotlinx.coroutines.flow.SharingStarted
 import kotlinx.coroutines.flow.onEach
@@ -42,7 +42,7 @@ import net.nurik.roman.muzei.R
 import net.nurik.roman.muzei.databinding.MuzeiArtworkItemBinding
 
 class MuzeiArtworkViewModel(application: Application) : AndroidViewModel(application) {
-    val currentArtwork = MuzeiDatabase.getInstance(application).artworkDao().currentArtwork
+    val currentArtwork = CurrentArtworkRepository.getInstance(application).currentArtwork
             .shareIn(viewModelScope, SharingStarted.WhileSubscribed(5000L), 1)
 }
 
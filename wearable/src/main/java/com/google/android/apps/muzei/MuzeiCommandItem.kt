@@ -34,7 +34,7 @@ import androidx.recyclerview.widget.ListAdapter
 import androidx.recyclerview.widget.RecyclerView
 import androidx.wear.widget.RoundedDrawable
 import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.room.getCommands
 import com.google.android.apps.muzei.util.launchWhenStartedIn
 import com.google.firebase.analytics.FirebaseAnalytics
@@ -59,7 +59,7 @@ data class ArtworkCommand(
 }
 
 class MuzeiCommandViewModel(application: Application) : AndroidViewModel(application) {
-    val commands = MuzeiDatabase.getInstance(application).artworkDao().currentArtwork.map { artwork ->
+    val commands = CurrentArtworkRepository.getInstance(application).currentArtwork.map { artwork ->
         artwork?.getCommands(application)?.sortedByDescending { command ->
             command.shouldShowIcon()
         }?.map { command ->
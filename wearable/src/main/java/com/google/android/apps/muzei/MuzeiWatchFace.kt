@@ -56,7 +56,7 @@ import com.google.android.apps.muzei.datalayer.ActivateMuzeiReceiver
 import com.google.android.apps.muzei.featuredart.BuildConfig.FEATURED_ART_AUTHORITY
 import com.google.android.apps.muzei.render.ImageLoader
 import com.google.android.apps.muzei.room.Artwork
-import com.google.android.apps.muzei.room.MuzeiDatabase
+import com.google.android.apps.muzei.room.CurrentArtworkRepository
 import com.google.android.apps.muzei.sync.ProviderManager
 import com.google.android.apps.muzei.util.ImageBlurrer
 import com.google.android.apps.muzei.util.blur
@@ -248,8 +248,8 @@ class MuzeiWatchFace : CanvasWatchFaceService(), LifecycleOwner {
         override fun onCreate(holder: SurfaceHolder) {
             super.onCreate(holder)
             Firebase.analytics.logEvent("watchface_created", null)
-            val database = MuzeiDatabase.getInstance(this@MuzeiWatchFace)
-            database.artworkDao().currentArtwork.onEach {  artwork ->
+            val currentArtworkRepository = CurrentArtworkRepository.getInstance(this@MuzeiWatchFace)
+            currentArtworkRepository.currentArtwork.onEach {  artwork ->
                 loadImage(artwork)
             }.launchWhenStartedIn(this@MuzeiWatchFace)
 
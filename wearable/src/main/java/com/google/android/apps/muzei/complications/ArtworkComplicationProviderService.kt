@@ -30,6 +30,7 @@ import androidx.core.content.edit
 import androidx.preference.PreferenceManager
 import com.google.android.apps.muzei.FullScreenActivity
 import com.google.android.apps.muzei.ProviderChangedReceiver
+import com.google.android.apps.muzei.api.MuzeiContract
 import com.google.android.apps.muzei.datalayer.ActivateMuzeiReceiver
 import com.google.android.apps.muzei.featuredart.BuildConfig.FEATURED_ART_AUTHORITY
 import com.google.android.apps.muzei.room.MuzeiDatabase
@@ -171,11 +172,21 @@ class ArtworkComplicationProviderService : ComplicationProviderService() {
                         setTapAction(tapAction)
                     }
                     ComplicationData.TYPE_SMALL_IMAGE -> {
+                        // Small images only take up a fraction of the screen
+                        val size = resources.displayMetrics.widthPixels / 2
                         setImageStyle(ComplicationData.IMAGE_STYLE_PHOTO)
-                                .setSmallImage(Icon.createWithContentUri(artwork.contentUri))
+                                .setSmallImage(Icon.createWithContentUri(
+                                        MuzeiContract.Artwork.getRenditionUri(
+                                                artwork.contentUri, size, size)))
                         setTapAction(tapAction)
                     }
-                    ComplicationData.TYPE_LARGE_IMAGE -> setLargeImage(Icon.createWithContentUri(artwork.contentUri))
+                    ComplicationData.TYPE_LARGE_IMAGE -> {
+                        val displayMetrics = resources.displayMetrics
+                        setLargeImage(Icon.createWithContentUri(
+                                MuzeiContract.Artwork.getRenditionUri(artwork.contentUri,
+                                        displayMetrics.widthPixels,
+                                        displayMetrics.heightPixels)))
+                    }
                 }
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "Updated $complicationId")